@@ -5,8 +5,11 @@
 class_path="$PWD/out/production/A1:$PWD/resources/sqlite-jdbc-3.39.3.0.jar"
 java_file="Component.LaunchAdmin"
 
+# Extra JVM options (e.g. -Dnode.dbPoolSize=16) passed to every process
+java_opts="$JAVA_OPTS"
+
 # Launch admin on the local machine
-java -cp $class_path $java_file &
+java $java_opts -cp $class_path $java_file &
 
 # Launch appropriate processes on the corresponding hosts
 for line in `cat config`
@@ -19,6 +22,6 @@ do
         java_file="Component.LaunchDatabase"
     else
         host=${line%:*}
-        ssh $host "cd $PWD; nohup java -cp $class_path $java_file" &
+        ssh $host "cd $PWD; nohup java $java_opts -cp $class_path $java_file" &
     fi
 done
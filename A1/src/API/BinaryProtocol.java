@@ -0,0 +1,160 @@
+package API;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary framing spoken between nodes and databases, next to the line protocol.
+ * A client opens the connection with a preamble whose first byte is never the
+ * start of a text command, so a database can tell the two apart. After that both
+ * sides exchange frames:
+ *
+ * <pre>
+ * int length | int id | byte type | short count | count x (int size | UTF-8 bytes)
+ * </pre>
+ *
+ * where length counts the bytes after itself and a size of -1 stands for null.
+ * A request's type is its command, a reply's type is OK or INVALID, and a reply
+ * carries the id of its request, so requests can be pipelined on one connection
+ * and answered in any order. Values may hold any character, newlines included.
+ */
+public class BinaryProtocol {
+
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final int MAX_FRAME = 1 << 24; // Longest frame accepted, in bytes
+    private static final byte[] PREAMBLE = {MAGIC, 'M', 'X', 1};
+
+    // Reply types
+    public static final byte OK = 0;
+    public static final byte INVALID = 1;
+
+    // Request types are 1 + the index of the command
+    private static final String[] COMMANDS = {"READ", "WRITE", "COPY", "SCAN", "STATUS", "STATS", "MREAD", "MWRITE", "BLOOM"};
+
+    /**
+     * One request or reply.
+     *
+     * @param id     request id, echoed by the reply
+     * @param type   command of a request, OK or INVALID for a reply
+     * @param fields values, any of which may be null
+     */
+    public record Frame(int id, byte type, String[] fields) {
+
+        /**
+         * @return the command of a request, or null if the type is unknown
+         */
+        public String command() {
+            return type >= 1 && type <= COMMANDS.length ? COMMANDS[type - 1] : null;
+        }
+    }
+
+    /**
+     * Returns the request type of a command.
+     *
+     * @param command command such as "READ"
+     * @return request type
+     * @throws IllegalArgumentException if the command has no binary form
+     */
+    public static byte type(String command) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) return (byte) (i + 1);
+        }
+        throw new IllegalArgumentException("No binary form for " + command);
+    }
+
+    /**
+     * Writes the preamble a client sends once, before its first frame.
+     *
+     * @param out stream to the database
+     * @throws IOException if the stream fails
+     */
+    public static void writePreamble(OutputStream out) throws IOException {
+        out.write(PREAMBLE);
+    }
+
+    /**
+     * Reads and checks the preamble at the start of a connection.
+     *
+     * @param in stream from the client
+     * @throws IOException if the stream fails or the preamble does not match
+     */
+    public static void readPreamble(InputStream in) throws IOException {
+        byte[] preamble = in.readNBytes(PREAMBLE.length);
+        for (int i = 0; i < PREAMBLE.length; i++) {
+            if (i >= preamble.length || preamble[i] != PREAMBLE[i]) throw new IOException("Unknown protocol preamble");
+        }
+    }
+
+    /**
+     * Writes one frame. The caller flushes.
+     *
+     * @param out    stream to write to
+     * @param id     request id
+     * @param type   request or reply type
+     * @param fields values, any of which may be null
+     * @throws IOException if the stream fails or the frame is too long
+     */
+    public static void write(DataOutputStream out, int id, byte type, String... fields) throws IOException {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 4 + 1 + 2;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != null) {
+                encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+                length += encoded[i].length;
+            }
+            length += 4;
+        }
+        if (fields.length > 0xffff || length > MAX_FRAME) throw new IOException("Frame too long");
+        out.writeInt(length);
+        out.writeInt(id);
+        out.writeByte(type);
+        out.writeShort(fields.length);
+        for (byte[] field : encoded) {
+            if (field == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(field.length);
+                out.write(field);
+            }
+        }
+    }
+
+    /**
+     * Reads one frame.
+     *
+     * @param in stream to read from
+     * @return the frame, or null if the stream ended between frames
+     * @throws IOException if the stream fails or the frame is malformed
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 7 || length > MAX_FRAME) throw new IOException("Bad frame length " + length);
+        int id = in.readInt();
+        byte type = in.readByte();
+        int count = in.readUnsignedShort();
+        int remaining = length - 7;
+        String[] fields = new String[count];
+        for (int i = 0; i < count; i++) {
+            int size = in.readInt();
+            remaining -= 4;
+            if (size == -1) continue;
+            if (size < 0 || size > remaining) throw new IOException("Bad field length " + size);
+            byte[] field = new byte[size];
+            in.readFully(field);
+            remaining -= size;
+            fields[i] = new String(field, StandardCharsets.UTF_8);
+        }
+        if (remaining != 0) throw new IOException("Bad frame length " + length);
+        return new Frame(id, type, fields);
+    }
+}
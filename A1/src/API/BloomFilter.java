@@ -0,0 +1,205 @@
+package API;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A Bloom filter of short URLs: a key it says is absent was never added, a key
+ * it says may be present was added or is a false positive. Keys can be added
+ * from any number of threads without locking.
+ * The number of bits is a power of two and the k probes are derived from two
+ * halves of one 64-bit hash, so a filter can be folded in half (OR-ing its two
+ * halves) into a smaller copy that still holds every key, at a higher false
+ * positive rate. That is how compact copies are sent to other processes.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long mask;
+    private final int hashes;
+    private final long capacity;
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Creates a filter sized for a number of keys and a false positive rate.
+     *
+     * @param capacity keys the filter is sized for
+     * @param fpp      false positive rate wanted once it holds that many keys
+     */
+    public BloomFilter(long capacity, double fpp) {
+        capacity = Math.max(1, capacity);
+        double bits = -capacity * Math.log(fpp) / (Math.log(2) * Math.log(2));
+        long size = Long.highestOneBit(Math.max(64, (long) Math.ceil(bits)) - 1) << 1;
+        size = Math.min(size, 1L << 36);
+        this.words = new AtomicLongArray((int) (size >>> 6));
+        this.mask = size - 1;
+        this.hashes = Math.max(1, Math.min(16, (int) Math.round((double) size / capacity * Math.log(2))));
+        this.capacity = capacity;
+    }
+
+    private BloomFilter(long[] words, int hashes, long capacity, long count) {
+        this.words = new AtomicLongArray(words);
+        this.mask = ((long) words.length << 6) - 1;
+        this.hashes = hashes;
+        this.capacity = capacity;
+        this.count.set(count);
+    }
+
+    /**
+     * Adds a key.
+     *
+     * @param key key to add
+     * @return true if the key was not in the filter before
+     */
+    public boolean add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        boolean changed = false;
+        for (int i = 0; i < hashes; i++) {
+            long bit = (h1 + (long) i * h2) & mask;
+            int word = (int) (bit >>> 6);
+            long flag = 1L << bit;
+            long old = words.get(word);
+            while ((old & flag) == 0) {
+                if (words.compareAndSet(word, old, old | flag)) {
+                    changed = true;
+                    break;
+                }
+                old = words.get(word);
+            }
+        }
+        if (changed) count.incrementAndGet();
+        return changed;
+    }
+
+    /**
+     * @param key key to look for
+     * @return false if the key was certainly never added
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = (h1 + (long) i * h2) & mask;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Mixes the key's hash again, as the ring places keys by the same hash and
+     * the keys of one database would otherwise share ranges of it.
+     */
+    private static long hash(String key) {
+        long h = Utils.hash(key) ^ 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return number of keys added, not counting keys that were already present
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * @return keys the filter was sized for
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return size in bits
+     */
+    public long bits() {
+        return mask + 1;
+    }
+
+    /**
+     * Estimates the false positive rate from the share of bits that are set.
+     *
+     * @return chance that an absent key is reported as present
+     */
+    public double fpp() {
+        long set = 0;
+        for (int i = 0; i < words.length(); i++) {
+            set += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) set / bits(), hashes);
+    }
+
+    /**
+     * Serializes the filter, folded in half until it has at most a number of bits,
+     * compressed and in Base64 so it fits on one line of the line protocol.
+     *
+     * @param maxBits largest size of the copy in bits, 0 for the full size
+     * @return encoded copy
+     */
+    public String encode(long maxBits) {
+        int length = words.length();
+        long[] copy = new long[length];
+        for (int i = 0; i < length; i++) {
+            copy[i] = words.get(i);
+        }
+        while (maxBits > 0 && length > 1 && (long) length << 6 > maxBits) {
+            length >>= 1;
+            for (int i = 0; i < length; i++) {
+                copy[i] |= copy[i + length];
+            }
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+                out.writeByte(hashes);
+                out.writeLong(capacity);
+                out.writeLong(count.get());
+                out.writeInt(length);
+                for (int i = 0; i < length; i++) {
+                    out.writeLong(copy[i]);
+                }
+            }
+            return Base64.getEncoder().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a copy made by {@link #encode}.
+     *
+     * @param encoded encoded copy
+     * @return the filter
+     * @throws IOException if the copy is malformed
+     */
+    public static BloomFilter decode(String encoded) throws IOException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new ByteArrayInputStream(Base64.getDecoder().decode(encoded))))) {
+            int hashes = in.readByte();
+            long capacity = in.readLong();
+            long count = in.readLong();
+            int length = in.readInt();
+            if (hashes < 1 || length < 1 || Integer.bitCount(length) != 1) throw new IOException("Bad Bloom filter");
+            long[] words = new long[length];
+            for (int i = 0; i < length; i++) {
+                words[i] = in.readLong();
+            }
+            return new BloomFilter(words, hashes, capacity, count);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad Bloom filter", e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package API;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of persistent line-protocol connections, kept per destination.
+ * Connections are checked when borrowed, retried once if a reused one turns out
+ * to be stale, and closed after sitting idle for too long.
+ */
+public class ConnectionPool {
+
+    private final int maxPerHost;
+    private final long idleTimeout;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final ConcurrentHashMap<String, HostPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Creates a connection pool.
+     *
+     * @param maxPerHost     maximum number of open connections to one destination
+     * @param idleTimeout    milliseconds a connection may stay idle before it is closed
+     * @param connectTimeout milliseconds to wait for a connection (or a free slot)
+     * @param readTimeout    milliseconds to wait for a reply
+     */
+    public ConnectionPool(int maxPerHost, long idleTimeout, int connectTimeout, int readTimeout) {
+        this.maxPerHost = maxPerHost;
+        this.idleTimeout = idleTimeout;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Client API, send a message over a pooled connection
+     * @return Server's response, or the empty string if the server cannot be reached
+     */
+    public String sendMsg(String ip, int port, String code, String content) {
+        HostPool pool = pools.computeIfAbsent(ip + ":" + port, k -> new HostPool(ip, port));
+        for (int attempt = 0; attempt < 2; attempt++) {
+            PooledConnection conn = pool.borrow();
+            if (conn == null) break;
+            try {
+                String res = conn.exchange(code, content);
+                pool.release(conn);
+                return res;
+            } catch (IOException e) {
+                pool.discard(conn);
+                // Only a connection that sat in the pool may have gone stale; a fresh one failing is real
+                if (!conn.reused) break;
+            }
+        }
+        System.out.println("Cannot Reach out to: " + ip + ":" + port);
+        return "";
+    }
+
+    /**
+     * Closes connections that have been idle longer than the idle timeout.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (HostPool pool : pools.values()) {
+            pool.evictIdle(now);
+        }
+    }
+
+    /**
+     * Returns the number of idle connections across all destinations.
+     *
+     * @return number of idle connections
+     */
+    public int idleCount() {
+        int count = 0;
+        for (HostPool pool : pools.values()) {
+            count += pool.idle.size();
+        }
+        return count;
+    }
+
+    /**
+     * Closes every pooled connection and stops the evictor.
+     */
+    public void close() {
+        evictor.shutdownNow();
+        for (HostPool pool : pools.values()) {
+            pool.evictIdle(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Connections to one destination.
+     * The semaphore bounds open connections, idle ones are reused most recent first.
+     */
+    private class HostPool {
+        final String host;
+        final int port;
+        final Semaphore permits = new Semaphore(maxPerHost);
+        final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+
+        HostPool(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        PooledConnection borrow() {
+            try {
+                if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            PooledConnection conn;
+            while ((conn = idle.pollFirst()) != null) {
+                if (conn.isHealthy(now)) {
+                    conn.reused = true;
+                    return conn;
+                }
+                conn.close();
+            }
+            try {
+                return new PooledConnection(host, port);
+            } catch (IOException e) {
+                permits.release();
+                return null;
+            }
+        }
+
+        void release(PooledConnection conn) {
+            conn.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(conn);
+            permits.release();
+        }
+
+        void discard(PooledConnection conn) {
+            conn.close();
+            permits.release();
+        }
+
+        void evictIdle(long now) {
+            for (PooledConnection conn : idle) {
+                if (now - conn.lastUsed >= idleTimeout && idle.remove(conn)) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A persistent socket speaking the line protocol of {@link Link#sendMsg}.
+     */
+    private class PooledConnection {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+        long lastUsed = System.currentTimeMillis();
+        boolean reused = false;
+
+        PooledConnection(String host, int port) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeout);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream());
+        }
+
+        boolean isHealthy(long now) {
+            return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown()
+                    && now - lastUsed < idleTimeout;
+        }
+
+        String exchange(String code, String content) throws IOException {
+            out.print(code + "\n" + content + "\n");
+            out.flush();
+            if (out.checkError()) throw new IOException("Write failed");
+            String replyCode = in.readLine();
+            String res = in.readLine();
+            if (replyCode == null || res == null) throw new IOException("Connection closed by server");
+            return res;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Socket error : " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package API;
+
+import Component.Address;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable consistent-hash ring of database addresses.
+ * Each address is placed on the ring at several virtual positions, and a key
+ * belongs to the first addresses found walking clockwise from its own hash.
+ * Adding or removing one of N addresses moves only about 1/N of the keys.
+ */
+public class ConsistentHashRing {
+
+    public static final int VIRTUAL_NODES = Integer.getInteger("ring.virtualNodes", 128);
+    public static final int REPLICATION_FACTOR = Integer.getInteger("ring.replicationFactor", 3); // Databases holding each key
+
+    private final TreeMap<Long, Address> ring = new TreeMap<>();
+    private final ArrayList<Address> members;
+
+    /**
+     * Creates a ring with the default number of virtual nodes.
+     *
+     * @param members addresses placed on the ring
+     */
+    public ConsistentHashRing(List<Address> members) {
+        this(members, VIRTUAL_NODES);
+    }
+
+    /**
+     * Creates a ring.
+     *
+     * @param members      addresses placed on the ring
+     * @param virtualNodes positions per address
+     */
+    public ConsistentHashRing(List<Address> members, int virtualNodes) {
+        this.members = new ArrayList<>(members);
+        for (Address address : members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(Utils.hash(address.host() + ":" + address.port() + "#" + i), address);
+            }
+        }
+    }
+
+    /**
+     * Returns the address responsible for a key, or null if the ring is empty.
+     *
+     * @param key short URL
+     * @return primary address
+     */
+    public Address primary(String key) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, Address> entry = ring.ceilingEntry(Utils.hash(key));
+        return (entry != null ? entry : ring.firstEntry()).getValue();
+    }
+
+    /**
+     * Returns the distinct addresses holding a key, primary first.
+     *
+     * @param key   short URL
+     * @param count number of replicas wanted
+     * @return up to count addresses in ring order
+     */
+    public ArrayList<Address> replicas(String key, int count) {
+        ArrayList<Address> replicas = new ArrayList<>(count);
+        int wanted = Math.min(count, members.size());
+        if (wanted <= 0) return replicas;
+        long hash = Utils.hash(key);
+        for (Address address : ring.tailMap(hash, true).values()) {
+            if (!replicas.contains(address)) replicas.add(address);
+            if (replicas.size() == wanted) return replicas;
+        }
+        for (Address address : ring.headMap(hash, false).values()) {
+            if (!replicas.contains(address)) replicas.add(address);
+            if (replicas.size() == wanted) return replicas;
+        }
+        return replicas;
+    }
+
+    /**
+     * Returns the addresses on the ring.
+     *
+     * @return ring members
+     */
+    public ArrayList<Address> members() {
+        return new ArrayList<>(members);
+    }
+
+    /**
+     * Returns the number of addresses on the ring.
+     *
+     * @return number of members
+     */
+    public int size() {
+        return members.size();
+    }
+}
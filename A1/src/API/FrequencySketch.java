@@ -0,0 +1,100 @@
+package API;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often keys were seen.
+ * Used as the TinyLFU admission filter of {@link UrlCache}: once the sketch
+ * has counted ten times its capacity, every counter is halved so the estimate
+ * follows recent popularity.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final AtomicLongArray table;
+    private final int mask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * Creates a sketch sized for a cache of the given capacity.
+     *
+     * @param capacity number of entries the cache holds
+     */
+    public FrequencySketch(long capacity) {
+        int counters = Integer.highestOneBit((int) Math.max(16, Math.min(1 << 28, capacity)) - 1) << 1;
+        this.table = new AtomicLongArray(Math.max(1, counters >>> 4));
+        this.mask = counters - 1;
+        this.sampleSize = (int) Math.min(Integer.MAX_VALUE / 2, 10L * Math.max(16, capacity));
+    }
+
+    /**
+     * Counts one occurrence of a key.
+     *
+     * @param key key seen
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(index(hash, i));
+        }
+        if (added && additions.incrementAndGet() >= sampleSize) reset();
+    }
+
+    /**
+     * Returns the estimated number of occurrences of a key, at most 15.
+     *
+     * @param key key to look up
+     * @return estimated frequency
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = index(hash, i);
+            int count = (int) ((table.get(index >>> 4) >>> ((index & 15) << 2)) & 0xf);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    private boolean incrementAt(int index) {
+        int slot = index >>> 4;
+        int shift = (index & 15) << 2;
+        while (true) {
+            long word = table.get(slot);
+            if (((word >>> shift) & 0xf) == 0xf) return false;
+            if (table.compareAndSet(slot, word, word + (1L << shift))) return true;
+        }
+    }
+
+    /**
+     * Halves every counter so that old popularity fades.
+     */
+    private void reset() {
+        additions.set(0);
+        for (int i = 0; i < table.length(); i++) {
+            long word;
+            do {
+                word = table.get(i);
+            } while (!table.compareAndSet(i, word, (word >>> 1) & RESET_MASK));
+        }
+    }
+
+    private int index(int hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,122 @@
+package API;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams the body of an HTTP request as it arrives, so a large upload is never
+ * held in memory. The body ends after Content-Length bytes or, for a chunked
+ * request, after the last chunk; the connection stream is left positioned after it.
+ */
+public class HttpBody {
+
+    /**
+     * Opens the body following a request head.
+     *
+     * @param head request head
+     * @param in   connection stream positioned after the head
+     * @return stream of the body, empty if the request has none
+     */
+    public static InputStream open(HttpHead head, InputStream in) {
+        String encoding = head.header("Transfer-Encoding");
+        if (encoding != null && encoding.toLowerCase().contains("chunked")) return new Chunked(in);
+        return new Bounded(in, Math.max(0, head.contentLength));
+    }
+
+    /**
+     * A body of a known length.
+     */
+    private static class Bounded extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        Bounded(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b == -1) throw new IOException("Body ended early");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (n == -1) throw new IOException("Body ended early");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Skip what was not read, so the next request on the connection starts in the right place
+            in.skipNBytes(remaining);
+            remaining = 0;
+        }
+    }
+
+    /**
+     * A body in chunked transfer coding.
+     */
+    private static class Chunked extends InputStream {
+        private final InputStream in;
+        private long remaining = 0;
+        private boolean done = false;
+
+        Chunked(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining == 0 && !nextChunk()) return -1;
+            int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (n == -1) throw new IOException("Body ended early");
+            remaining -= n;
+            // A chunk's data is followed by a line break
+            if (remaining == 0) Link.readLine(in);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            byte[] skip = new byte[8192];
+            while (read(skip, 0, skip.length) != -1) {
+                // Read to the last chunk
+            }
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (done) return false;
+            String line = Link.readLine(in);
+            if (line == null) throw new IOException("Body ended early");
+            int extension = line.indexOf(';');
+            try {
+                remaining = Long.parseLong((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size " + line);
+            }
+            if (remaining < 0) throw new IOException("Bad chunk size " + line);
+            if (remaining > 0) return true;
+            // The last chunk, then trailers up to a blank line
+            String trailer;
+            while ((trailer = Link.readLine(in)) != null && !trailer.isEmpty()) {
+                // Trailers are not used
+            }
+            done = true;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package API;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The head of an HTTP/1.x request or response, with the fields needed to frame
+ * messages on a persistent connection: the body length and whether the
+ * connection may carry another message afterwards.
+ */
+public class HttpHead {
+
+    public static final int MAX_HEAD = 16384; // Longest head accepted, in bytes
+
+    public final String firstLine;
+    public final int status;          // status code of a response, 0 for a request
+    public final long contentLength;  // -1 when there is no Content-Length header
+    public final boolean keepAlive;   // true if the connection may be reused after this message
+    public final boolean framed;      // true if the end of the body is known without closing the connection
+    private final String[] lines;
+
+    private HttpHead(String[] lines, boolean response) {
+        this.lines = lines;
+        this.firstLine = lines.length > 0 ? lines[0] : "";
+        String[] parts = firstLine.split("\\s+");
+        String version = response ? parts[0] : parts[parts.length - 1];
+
+        long length = -1;
+        boolean chunked = false;
+        Boolean connection = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) continue;
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim().toLowerCase();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    length = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    length = -1;
+                }
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.contains("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                if (value.contains("close")) connection = false;
+                else if (value.contains("keep-alive")) connection = true;
+            }
+        }
+        this.contentLength = length;
+
+        this.status = response && parts.length > 1 ? parseStatus(parts[1]) : 0;
+        boolean bodiless = response && (status / 100 == 1 || status == 204 || status == 304);
+        // A request without a length has no body; a response without one runs until the connection closes
+        this.framed = !chunked && (length >= 0 || !response || bodiless);
+        boolean persistent = connection != null ? connection : version.equals("HTTP/1.1");
+        this.keepAlive = persistent && framed;
+    }
+
+    /**
+     * Reads the header lines following a first line, up to and including the blank line.
+     *
+     * @param firstLine request or status line already read
+     * @param in        stream positioned after the first line
+     * @param response  true for a response head, false for a request head
+     * @return parsed head
+     * @throws IOException if the stream fails or the head is too long
+     */
+    public static HttpHead read(String firstLine, InputStream in, boolean response) throws IOException {
+        StringBuilder head = new StringBuilder(firstLine).append('\n');
+        // A bare request line without a version has no headers to read
+        if (!response && !firstLine.contains(" HTTP/")) return new HttpHead(new String[]{firstLine}, false);
+        String line;
+        while ((line = Link.readLine(in)) != null && !line.isEmpty()) {
+            head.append(line).append('\n');
+            if (head.length() > MAX_HEAD) throw new IOException("HTTP head too long");
+        }
+        return new HttpHead(head.toString().split("\n"), response);
+    }
+
+    /**
+     * Parses a complete head held in a byte array.
+     *
+     * @param raw      head bytes, including the terminating blank line
+     * @param length   number of bytes of the head
+     * @param response true for a response head, false for a request head
+     * @return parsed head
+     */
+    public static HttpHead parse(byte[] raw, int length, boolean response) {
+        String head = new String(raw, 0, length, StandardCharsets.UTF_8).replace("\r", "");
+        return new HttpHead(head.strip().split("\n"), response);
+    }
+
+    /**
+     * Finds the end of a head in the bytes of a buffer in fill mode.
+     *
+     * @param buffer buffer whose bytes from 0 to its position are searched
+     * @return number of bytes up to and including the blank line, or -1 if it has not arrived
+     */
+    public static int headEnd(ByteBuffer buffer) {
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) != '\n') continue;
+            if (i >= 1 && buffer.get(i - 1) == '\n') return i + 1;
+            if (i >= 2 && buffer.get(i - 1) == '\r' && buffer.get(i - 2) == '\n') return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Renders the head again with its hop-by-hop connection headers replaced,
+     * so each side of a proxy negotiates persistence on its own.
+     *
+     * @param keepAlive true to ask for a persistent connection
+     * @return head bytes with CRLF line endings and the terminating blank line
+     */
+    public byte[] render(boolean keepAlive) {
+        StringBuilder head = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (i > 0) {
+                String name = line.indexOf(':') > 0 ? line.substring(0, line.indexOf(':')).trim() : "";
+                if (name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Keep-Alive")
+                        || name.equalsIgnoreCase("Proxy-Connection")) continue;
+            }
+            head.append(line).append("\r\n");
+        }
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        return head.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the value of the first header with the given name.
+     *
+     * @param name header name, matched ignoring case
+     * @return header value, or null if the header is absent
+     */
+    public String header(String name) {
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon == name.length() && lines[i].regionMatches(true, 0, name, 0, colon)) {
+                return lines[i].substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the head as text, one header per line.
+     *
+     * @return head text
+     */
+    @Override
+    public String toString() {
+        return String.join("\n", lines);
+    }
+
+    private static int parseStatus(String code) {
+        try {
+            return Integer.parseInt(code);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
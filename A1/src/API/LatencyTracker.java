@@ -0,0 +1,91 @@
+package API;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram over a sliding window.
+ * Latencies fall into log-scale buckets (four per power of two microseconds),
+ * and two windows are kept so percentiles always cover the last one to two
+ * window lengths of samples.
+ */
+public class LatencyTracker {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 26 * SUB_BUCKETS; // Up to about 2^26 microseconds (67 s)
+
+    private final long window;
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+    private volatile long windowStart = System.currentTimeMillis();
+
+    /**
+     * Creates a tracker.
+     *
+     * @param window window length in milliseconds
+     */
+    public LatencyTracker(long window) {
+        this.window = window;
+    }
+
+    /**
+     * Records one latency.
+     *
+     * @param micros latency in microseconds
+     */
+    public void record(long micros) {
+        rotate();
+        current.incrementAndGet(bucket(micros));
+    }
+
+    /**
+     * Returns the latency below which the given share of recent samples fall.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return upper bound of the percentile's bucket in microseconds, or 0 without samples
+     */
+    public long percentile(double percentile) {
+        rotate();
+        AtomicLongArray cur = current;
+        AtomicLongArray prev = previous;
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += cur.get(i) + prev.get(i);
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += cur.get(i) + prev.get(i);
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Starts a new window once the current one is older than the window length.
+     */
+    private void rotate() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart < window) return;
+        synchronized (this) {
+            if (now - windowStart < window) return;
+            previous = current;
+            current = new AtomicLongArray(BUCKETS);
+            windowStart = now;
+        }
+    }
+
+    private static int bucket(long micros) {
+        if (micros < 1) return 0;
+        int log = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = log >= 2 ? (int) ((micros >>> (log - 2)) & (SUB_BUCKETS - 1)) : 0;
+        return Math.min(BUCKETS - 1, log * SUB_BUCKETS + sub);
+    }
+
+    private static long upperBound(int bucket) {
+        int log = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        if (log < 2) return 1L << (log + 1);
+        return (1L << log) + ((long) (sub + 1) << (log - 2));
+    }
+}
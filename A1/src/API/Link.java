@@ -5,10 +5,15 @@ import Component.Address;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An abstract api class with multithreaded socket connection support
@@ -22,13 +27,48 @@ public abstract class Link {
 
 	public static final boolean verbose = false;
 
+	public static final String EXECUTOR = System.getProperty("link.executor", "virtual"); // "virtual", "fixed" or "bounded"
+	public static final int QUEUE_SIZE = Integer.getInteger("link.queueSize", 1024);       // Connections waiting for a thread in "bounded" mode
+
 	/**
 	 * Server initialization
 	 * @param port
 	 */
 	public Link(int port) {
+		this(port, 8);
+	}
+
+	/**
+	 * Server initialization with a given number of handler threads
+	 * @param port
+	 * @param threads pool size when connections are not run on virtual threads
+	 */
+	public Link(int port, int threads) {
 		this.port = port;
-		this.executor = Executors.newFixedThreadPool(8);
+		this.executor = createExecutor(EXECUTOR, threads);
+	}
+
+	/**
+	 * Create an executor for blocking socket work
+	 * @param mode "virtual" for a virtual thread per task, "fixed" for a fixed pool,
+	 *             "bounded" for a fixed pool whose queue turns away tasks once full
+	 * @param threads pool size in the "fixed" and "bounded" modes
+	 * @return executor
+	 */
+	public static ExecutorService createExecutor(String mode, int threads) {
+		if (mode.equals("bounded")) {
+			return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(QUEUE_SIZE), new ThreadPoolExecutor.AbortPolicy());
+		}
+		if (mode.equals("virtual")) {
+			try {
+				// Looked up at runtime so the code still builds and runs on JDKs without virtual threads
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+				System.err.println("Virtual threads are not available on this JVM, using a pool of " + threads + " threads");
+			}
+		}
+		return Executors.newFixedThreadPool(threads);
 	}
 
 	/**
@@ -40,7 +80,14 @@ public abstract class Link {
 			if(verbose)System.out.println("Server started at " + this.port);
 
 			while (true) {
-				this.executor.execute(handler(this.serverSocket.accept()));
+				Socket socket = this.serverSocket.accept();
+				try {
+					this.executor.execute(handler(socket));
+				} catch (RejectedExecutionException e) {
+					// The bounded queue is full, shed the connection instead of letting it wait
+					System.err.println("Server busy, closing connection");
+					socket.close();
+				}
 			}
 		} catch (IOException e) {
 			System.err.println("Server Connection error : " + e.getMessage());
@@ -150,51 +197,85 @@ public abstract class Link {
 	 * Client API, send HTML file with different status
 	 */
 	public static void sendHTML(File file, String status, PrintWriter out, BufferedOutputStream dataOut) throws IOException {
+		sendHTML(file, status, null, out, dataOut);
+	}
 
-		int fileLength = (int) file.length();
-		String contentMimeType = "text/html";
-		//read content to return to client
-		byte[] fileData = Utils.readFileData(file, fileLength);
-
-		out.println(status);
-		out.println("Server: Java HTTP Server/Shortener : 1.0");
-		out.println("Date: " + new Date());
-		out.println("Content-type: " + contentMimeType);
-		out.println("Content-length: " + fileLength);
-		out.println();
+	/**
+	 * Client API, send HTML file for redirect
+	 */
+	public static void sendHTML(File file, String status, String redirect, PrintWriter out, BufferedOutputStream dataOut) throws IOException {
 		out.flush();
-
-		dataOut.write(fileData, 0, fileLength);
+		writeHTML(dataOut, file, status, redirect, false);
 		dataOut.flush();
 	}
 
 	/**
-	 * Client API, send HTML file for redirect
+	 * Client API, write a complete HTTP response (headers and HTML file) from the page cache
+	 * @param redirect redirect location, or null for none
+	 * @param keepAlive true if the connection stays open for another request
 	 */
-	public static void sendHTML(File file, String status, String redirect, PrintWriter out, BufferedOutputStream dataOut) throws IOException {
+	public static void writeHTML(OutputStream out, File file, String status, String redirect, boolean keepAlive) throws IOException {
+		PageCache.write(out, file, status, redirect, keepAlive);
+	}
 
-		int fileLength = (int) file.length();
-		String contentMimeType = "text/html";
-		//read content to return to client
-		byte[] fileData = Utils.readFileData(file, fileLength);
+	/**
+	 * Client API, write a plain text HTTP response
+	 * @param text response body
+	 * @param keepAlive true if the connection stays open for another request
+	 */
+	public static void writeText(OutputStream out, String status, String text, boolean keepAlive) throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		StringBuilder head = new StringBuilder();
+		head.append(status).append("\r\n");
+		head.append("Server: Java HTTP Server/Shortener : 1.0\r\n");
+		head.append("Date: ").append(new String(PageCache.date(), StandardCharsets.ISO_8859_1));
+		head.append("Content-type: text/plain; charset=utf-8\r\n");
+		head.append("Content-length: ").append(body.length).append("\r\n");
+		head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+		out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+		out.write(body);
+	}
 
-		out.println(status);
-		out.println("Location: " + redirect);
-		out.println("Server: Java HTTP Server/Shortener : 1.0");
-		out.println("Date: " + new Date());
-		out.println("Content-type: " + contentMimeType);
-		out.println("Content-length: " + fileLength);
-		out.println();
-		out.flush();
+	/**
+	 * Client API, build a complete HTTP response (headers and HTML file) as bytes
+	 * @param redirect redirect location, or null for none
+	 * @return response bytes
+	 */
+	public static byte[] renderHTML(File file, String status, String redirect) throws IOException {
+		return renderHTML(file, status, redirect, false);
+	}
 
-		dataOut.write(fileData, 0, fileLength);
-		dataOut.flush();
+	/**
+	 * Client API, build a complete HTTP response (headers and HTML file) as bytes
+	 * @param redirect redirect location, or null for none
+	 * @param keepAlive true if the connection stays open for another request
+	 * @return response bytes
+	 */
+	public static byte[] renderHTML(File file, String status, String redirect, boolean keepAlive) throws IOException {
+		return PageCache.render(file, status, redirect, keepAlive);
+	}
+
+	/**
+	 * Read one line of bytes up to a newline, without the line terminator
+	 * @return the line, or null at the end of the stream
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			line.write(b);
+		}
+		if (b == -1 && line.size() == 0) return null;
+		byte[] bytes = line.toByteArray();
+		int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
 	}
 
 	/**
 	 * Client API, send latest info to monitoring page
+	 * @param status extra status line shown under the servers, may be empty
 	 */
-	public static void sendDiv(PrintWriter out, BufferedOutputStream dataOut, ArrayList<Address> AllList, ArrayList<Address> LBList, ArrayList<Address> DBList, ArrayList<Address> NodeList) throws IOException {
+	public static void sendDiv(PrintWriter out, BufferedOutputStream dataOut, ArrayList<Address> AllList, ArrayList<Address> LBList, ArrayList<Address> DBList, ArrayList<Address> NodeList, String status) throws IOException {
 		StringWriter str = new StringWriter();
 		PrintWriter writer = new PrintWriter(str);
 		writer.println("<h4>Servers:</h4>");
@@ -203,6 +284,7 @@ public abstract class Link {
 			if(add.type().equals("NODE"))writer.println("<pre>"+add.host()+":"+add.port()+"    Type: URL Shortener"+"    Status: "+(NodeList.contains(add)?"Alive":"No Response")+"</pre>");
 			if(add.type().equals("DB"))writer.println("<pre>"+add.host()+":"+add.port()+"    Type: Database"+"    Status: "+(DBList.contains(add)?"Alive":"No Response")+"</pre>");
 		}
+		if(!status.isEmpty())writer.println("<pre>"+status+"</pre>");
 
 		String results = str.toString();
 		int length = results.length();
@@ -0,0 +1,201 @@
+package API;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client for the binary protocol of {@link BinaryProtocol} that keeps a few
+ * connections per destination and pipelines any number of requests on each.
+ * Requests are written as soon as they are made and replies are matched to them
+ * by id as they arrive, so no thread waits on a reply while it is outstanding.
+ */
+public class MultiplexedClient {
+
+    private final int connections;
+    private final long idleTimeout;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final ConcurrentHashMap<String, Channel[]> hosts = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong inFlight = new AtomicLong();
+
+    /**
+     * Creates a multiplexed client.
+     *
+     * @param connections    connections kept to each destination
+     * @param idleTimeout    milliseconds after which an idle connection is opened again before use
+     * @param connectTimeout milliseconds to wait for a connection
+     * @param readTimeout    milliseconds to wait for a reply
+     */
+    public MultiplexedClient(int connections, long idleTimeout, int connectTimeout, int readTimeout) {
+        this.connections = Math.max(1, connections);
+        this.idleTimeout = idleTimeout;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sends a request. A request that fails because its connection was lost is
+     * sent once more on a new connection; every command is safe to repeat.
+     *
+     * @param host    destination host
+     * @param port    destination port
+     * @param command command such as "READ"
+     * @param fields  request values
+     * @return future of the reply values, failing if the destination cannot be reached in time
+     */
+    public CompletableFuture<String[]> send(String host, int port, String command, String... fields) {
+        byte type = BinaryProtocol.type(command);
+        return attempt(host, port, type, fields).exceptionallyCompose(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (!(cause instanceof IOException)) return CompletableFuture.failedFuture(cause);
+            return attempt(host, port, type, fields);
+        });
+    }
+
+    /**
+     * Returns the number of requests waiting for a reply.
+     *
+     * @return requests in flight
+     */
+    public long inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Closes every connection, failing the requests still waiting on them.
+     */
+    public void close() {
+        for (Channel[] channels : hosts.values()) {
+            for (Channel channel : channels) {
+                if (channel != null) channel.close(new IOException("Client closed"));
+            }
+        }
+    }
+
+    private CompletableFuture<String[]> attempt(String host, int port, byte type, String[] fields) {
+        Channel channel;
+        try {
+            channel = channel(host, port);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return channel.send(type, fields);
+    }
+
+    /**
+     * Picks a connection to a destination round robin, opening it again if it
+     * was lost or has been idle long enough for the server to drop it.
+     */
+    private Channel channel(String host, int port) throws IOException {
+        Channel[] channels = hosts.computeIfAbsent(host + ":" + port, k -> new Channel[connections]);
+        int index = Math.floorMod(next.getAndIncrement(), channels.length);
+        synchronized (channels) {
+            Channel channel = channels[index];
+            long now = System.currentTimeMillis();
+            if (channel != null && !channel.closed && now - channel.lastUsed >= idleTimeout && channel.pending.isEmpty()) {
+                channel.close(new IOException("Idle connection closed"));
+            }
+            if (channel == null || channel.closed) {
+                channel = new Channel(host, port);
+                channels[index] = channel;
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * One connection with the requests waiting for a reply on it, and a thread
+     * reading the replies.
+     */
+    private class Channel {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final ConcurrentHashMap<Integer, CompletableFuture<String[]>> pending = new ConcurrentHashMap<>();
+        final AtomicInteger ids = new AtomicInteger();
+        volatile boolean closed = false;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Channel(String host, int port) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), connectTimeout);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                BinaryProtocol.writePreamble(out);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            Thread reader = new Thread(this::readLoop, "mux-" + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        CompletableFuture<String[]> send(byte type, String[] fields) {
+            int id = ids.incrementAndGet();
+            CompletableFuture<String[]> reply = new CompletableFuture<>();
+            pending.put(id, reply);
+            inFlight.incrementAndGet();
+            lastUsed = System.currentTimeMillis();
+            try {
+                synchronized (out) {
+                    BinaryProtocol.write(out, id, type, fields);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+            return reply.orTimeout(readTimeout, TimeUnit.MILLISECONDS).whenComplete((values, e) -> {
+                pending.remove(id);
+                inFlight.decrementAndGet();
+            });
+        }
+
+        void readLoop() {
+            IOException cause = new IOException("Connection closed by server");
+            try {
+                BinaryProtocol.Frame frame;
+                while ((frame = BinaryProtocol.read(in)) != null) {
+                    lastUsed = System.currentTimeMillis();
+                    CompletableFuture<String[]> reply = pending.remove(frame.id());
+                    if (reply == null) continue; // Timed out already
+                    if (frame.type() == BinaryProtocol.OK) {
+                        reply.complete(frame.fields());
+                    } else {
+                        reply.completeExceptionally(new IllegalArgumentException("Request rejected: " + String.join(" ", frame.fields())));
+                    }
+                }
+            } catch (IOException e) {
+                cause = e;
+            }
+            close(cause);
+        }
+
+        void close(IOException cause) {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Socket error : " + e.getMessage());
+            }
+            for (Integer id : pending.keySet()) {
+                CompletableFuture<String[]> reply = pending.remove(id);
+                if (reply != null) reply.completeExceptionally(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package API;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An off-heap short-to-long URL cache using open addressing over fixed-size slots.
+ * Slots live in direct buffers or, when a file is given, in a memory-mapped file
+ * that lets the cache survive a restart. Keys and values are stored as UTF-8 bytes
+ * in place, so millions of entries add no objects for the garbage collector to trace.
+ *
+ * Slots are grouped in blocks of 64 guarded by one striped lock; a key probes at
+ * most 16 slots inside its home block, and a full probe window evicts the entry
+ * closest to expiry. Lookups are optimistic reads that only lock on a conflict.
+ */
+public class OffHeapCache {
+
+    private static final int SLOT = 256;
+    private static final int KEY_MAX = 100;
+    private static final int VALUE_MAX = SLOT - 20 - KEY_MAX;
+    private static final int BLOCK = 64;
+    private static final int PROBES = 16;
+    private static final int SEGMENT_SLOTS = 1 << 22; // 1 GiB per buffer
+    private static final int LOCKS = 1024;
+    private static final long MAGIC = 0x55524c4361636865L; // "URLCache"
+
+    // Slot layout: key hash, expiry (epoch milliseconds), key length, value length, key, value
+    private static final int HASH = 0;
+    private static final int EXPIRES = 8;
+    private static final int KEY_LEN = 16;
+    private static final int VALUE_LEN = 18;
+    private static final int KEY = 20;
+    private static final int VALUE = KEY + KEY_MAX;
+    private static final short EMPTY = 0;
+    private static final short DELETED = -1;
+
+    private final ByteBuffer[] segments;
+    private final long slots;
+    private final long ttl;
+    private final StampedLock[] locks = new StampedLock[LOCKS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * A cached long URL and the time its entry expires, in epoch milliseconds.
+     */
+    public record Cached(String value, long expiresAt) {}
+
+    /**
+     * Creates an off-heap cache. Slot 0 holds a header, so a mapped file written
+     * by a cache of the same capacity is reused as it is.
+     *
+     * @param capacity number of entries to make room for
+     * @param ttl      time to live of an entry in milliseconds
+     * @param path     file to map, or null to use direct memory
+     * @throws IOException if the file cannot be mapped
+     */
+    public OffHeapCache(long capacity, long ttl, String path) throws IOException {
+        this.ttl = ttl;
+        long wanted = Math.max(BLOCK * 2, capacity + capacity / 4);
+        this.slots = Long.highestOneBit(wanted - 1) << 1;
+        int count = (int) ((slots + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS);
+        this.segments = new ByteBuffer[count];
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new StampedLock();
+        }
+
+        if (path == null || path.isEmpty()) {
+            for (int i = 0; i < count; i++) {
+                segments[i] = ByteBuffer.allocateDirect(segmentBytes(i));
+            }
+            writeHeader();
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw");
+             FileChannel channel = file.getChannel()) {
+            boolean reuse = file.length() == slots * SLOT;
+            file.setLength(slots * SLOT);
+            for (int i = 0; i < count; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SLOTS * SLOT, segmentBytes(i));
+            }
+            if (!reuse || segments[0].getLong(0) != MAGIC || segments[0].getLong(8) != slots) {
+                clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the long URL cached for a short URL.
+     *
+     * @param key short URL
+     * @return long URL, or null if it is not cached or has expired
+     */
+    public String get(String key) {
+        Cached cached = lookup(key);
+        return cached != null ? cached.value() : null;
+    }
+
+    /**
+     * Returns the long URL cached for a short URL together with its expiry, so
+     * a copy made elsewhere can expire at the same time.
+     *
+     * @param key short URL
+     * @return long URL and expiry, or null if it is not cached or has expired
+     */
+    public Cached lookup(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > KEY_MAX) {
+            misses.increment();
+            return null;
+        }
+        long hash = Utils.hash(keyBytes);
+        long home = home(hash);
+        StampedLock lock = lockFor(home);
+        long stamp = lock.tryOptimisticRead();
+        Cached value = find(keyBytes, hash, home);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = find(keyBytes, hash, home);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Caches a long URL for a short URL. Pairs too long for a slot are skipped.
+     *
+     * @param key   short URL
+     * @param value long URL
+     */
+    public void put(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > KEY_MAX || valueBytes.length > VALUE_MAX || keyBytes.length == 0) {
+            skipped.increment();
+            return;
+        }
+        long hash = Utils.hash(keyBytes);
+        long home = home(hash);
+        long now = System.currentTimeMillis();
+        StampedLock lock = lockFor(home);
+        long stamp = lock.writeLock();
+        try {
+            long match = -1;
+            long free = -1;
+            long oldest = -1;
+            long oldestExpiry = Long.MAX_VALUE;
+            for (int i = 0; i < PROBES && match < 0; i++) {
+                long slot = probe(home, i);
+                ByteBuffer buf = segment(slot);
+                int base = offset(slot);
+                short keyLen = buf.getShort(base + KEY_LEN);
+                long expires = buf.getLong(base + EXPIRES);
+                if (keyLen > 0 && matches(buf, base, keyBytes, hash)) {
+                    match = slot;
+                } else if (keyLen == EMPTY || keyLen == DELETED || expires <= now) {
+                    if (free < 0) free = slot;
+                    if (keyLen == EMPTY) break;
+                } else if (expires < oldestExpiry) {
+                    oldest = slot;
+                    oldestExpiry = expires;
+                }
+            }
+            long target = match >= 0 ? match : free;
+            if (target < 0) {
+                // The probe window is full, evict the entry closest to expiry
+                target = oldest;
+                evictions.increment();
+            }
+            ByteBuffer buf = segment(target);
+            int base = offset(target);
+            buf.putLong(base + HASH, hash);
+            buf.putLong(base + EXPIRES, now + ttl);
+            buf.putShort(base + VALUE_LEN, (short) valueBytes.length);
+            buf.put(base + KEY, keyBytes);
+            buf.put(base + VALUE, valueBytes);
+            buf.putShort(base + KEY_LEN, (short) keyBytes.length);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a short URL from the cache.
+     *
+     * @param key short URL
+     */
+    public void invalidate(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > KEY_MAX) return;
+        long hash = Utils.hash(keyBytes);
+        long home = home(hash);
+        StampedLock lock = lockFor(home);
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < PROBES; i++) {
+                long slot = probe(home, i);
+                ByteBuffer buf = segment(slot);
+                int base = offset(slot);
+                short keyLen = buf.getShort(base + KEY_LEN);
+                if (keyLen == EMPTY) return;
+                if (keyLen > 0 && matches(buf, base, keyBytes, hash)) {
+                    buf.putShort(base + KEY_LEN, DELETED);
+                    return;
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Summarizes the cache counters on one line.
+     *
+     * @return capacity, hit, miss, eviction and skip counts
+     */
+    public String stats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        return "slots=" + (slots - 1)
+                + " hits=" + h
+                + " misses=" + m
+                + " hitRate=" + String.format("%.3f", h + m == 0 ? 0.0 : (double) h / (h + m))
+                + " evictions=" + evictions.sum()
+                + " skipped=" + skipped.sum();
+    }
+
+    private Cached find(byte[] keyBytes, long hash, long home) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < PROBES; i++) {
+            long slot = probe(home, i);
+            ByteBuffer buf = segment(slot);
+            int base = offset(slot);
+            short keyLen = buf.getShort(base + KEY_LEN);
+            if (keyLen == EMPTY) return null;
+            if (keyLen > 0 && matches(buf, base, keyBytes, hash)) {
+                long expires = buf.getLong(base + EXPIRES);
+                if (expires <= now) return null;
+                int valueLen = Math.min(VALUE_MAX, Math.max(0, buf.getShort(base + VALUE_LEN)));
+                byte[] valueBytes = new byte[valueLen];
+                buf.get(base + VALUE, valueBytes);
+                return new Cached(new String(valueBytes, StandardCharsets.UTF_8), expires);
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(ByteBuffer buf, int base, byte[] keyBytes, long hash) {
+        if (buf.getLong(base + HASH) != hash || buf.getShort(base + KEY_LEN) != keyBytes.length) return false;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (buf.get(base + KEY + i) != keyBytes[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Home slot of a hash; slot 0 is the header and never used for data.
+     */
+    private long home(long hash) {
+        long slot = hash & (slots - 1);
+        return slot == 0 ? 1 : slot;
+    }
+
+    /**
+     * The i-th slot probed from a home slot, wrapping inside the home block.
+     */
+    private long probe(long home, int i) {
+        long block = home & ~(long) (BLOCK - 1);
+        long slot = block + ((home + i) & (BLOCK - 1));
+        return slot == 0 ? BLOCK - 1 : slot;
+    }
+
+    private StampedLock lockFor(long home) {
+        return locks[(int) ((home / BLOCK) & (LOCKS - 1))];
+    }
+
+    private ByteBuffer segment(long slot) {
+        return segments[(int) (slot / SEGMENT_SLOTS)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot % SEGMENT_SLOTS) * SLOT;
+    }
+
+    private int segmentBytes(int i) {
+        return (int) (Math.min(SEGMENT_SLOTS, slots - (long) i * SEGMENT_SLOTS) * SLOT);
+    }
+
+    private void clear() {
+        byte[] zeros = new byte[SLOT * BLOCK];
+        for (ByteBuffer segment : segments) {
+            for (int pos = 0; pos < segment.capacity(); pos += zeros.length) {
+                segment.put(pos, zeros, 0, Math.min(zeros.length, segment.capacity() - pos));
+            }
+        }
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        segments[0].putLong(0, MAGIC);
+        segments[0].putLong(8, slots);
+    }
+}
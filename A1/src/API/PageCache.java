@@ -0,0 +1,171 @@
+package API;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pre-rendered HTML responses. Each page is read from disk once per status and
+ * kept as the bytes before and after the parts that change between responses,
+ * so a response is the status line, an optional Location header, the Date header
+ * and the prebuilt rest of the headers and the body. The Date value is formatted
+ * at most once a second, and pages are read again when their file changes.
+ */
+public class PageCache {
+
+    public static final boolean EMPTY_REDIRECT = Boolean.getBoolean("link.emptyRedirect"); // Send redirects without the HTML body
+    public static final long RELOAD_INTERVAL = Long.getLong("link.pageReload", 1000);         // Milliseconds between checks for changed pages, 0 to never check
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LOCATION = "Location: ".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SERVER_DATE = "Server: Java HTTP Server/Shortener : 1.0\r\nDate: ".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final ConcurrentHashMap<Key, Page> pages = new ConcurrentHashMap<>();
+    private static volatile Stamp date = new Stamp(-1, new byte[0]);
+
+    private record Key(File file, String status) {}
+
+    private record Stamp(long second, byte[] value) {}
+
+    /**
+     * A page with its status line and the four variants of everything after the
+     * Date value: keep-alive or close, with or without the body.
+     */
+    private static final class Page {
+        final long modified;
+        final long length;
+        final byte[] status;
+        final byte[][] tails = new byte[4][];
+        volatile long checked;
+
+        Page(File file, String status) throws IOException {
+            this.modified = file.lastModified();
+            this.length = file.length();
+            this.status = (status + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            this.checked = System.currentTimeMillis();
+            byte[] body = Utils.readFileData(file, (int) length);
+            for (int i = 0; i < tails.length; i++) {
+                boolean keepAlive = (i & 1) != 0;
+                boolean withBody = (i & 2) == 0;
+                String head = "Content-type: text/html\r\n"
+                        + "Content-length: " + (withBody ? body.length : 0) + "\r\n"
+                        + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+                byte[] headData = head.getBytes(StandardCharsets.ISO_8859_1);
+                tails[i] = new byte[headData.length + (withBody ? body.length : 0)];
+                System.arraycopy(headData, 0, tails[i], 0, headData.length);
+                if (withBody) System.arraycopy(body, 0, tails[i], headData.length, body.length);
+            }
+        }
+
+        byte[] tail(boolean keepAlive, boolean withBody) {
+            return tails[(keepAlive ? 1 : 0) | (withBody ? 0 : 2)];
+        }
+    }
+
+    /**
+     * Writes a complete HTTP response to a stream in pieces, without copying the
+     * page. On a buffered stream the response leaves in a single write when flushed.
+     *
+     * @param out       stream to the client
+     * @param file      HTML page
+     * @param status    status line
+     * @param redirect  redirect location, or null for none
+     * @param keepAlive true if the connection stays open for another request
+     * @throws IOException if the page cannot be read or the stream fails
+     */
+    public static void write(OutputStream out, File file, String status, String redirect, boolean keepAlive) throws IOException {
+        Page page = page(file, status);
+        out.write(page.status);
+        if (redirect != null) {
+            out.write(LOCATION);
+            // UTF-8 as the redirect was always sent, a long URL may hold any character
+            out.write(redirect.getBytes(StandardCharsets.UTF_8));
+            out.write(CRLF);
+        }
+        out.write(SERVER_DATE);
+        out.write(date());
+        out.write(page.tail(keepAlive, redirect == null || !EMPTY_REDIRECT));
+    }
+
+    /**
+     * Builds a complete HTTP response as one array.
+     *
+     * @param file      HTML page
+     * @param status    status line
+     * @param redirect  redirect location, or null for none
+     * @param keepAlive true if the connection stays open for another request
+     * @return response bytes
+     * @throws IOException if the page cannot be read
+     */
+    public static byte[] render(File file, String status, String redirect, boolean keepAlive) throws IOException {
+        Page page = page(file, status);
+        byte[] location = redirect != null ? redirect.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] now = date();
+        byte[] tail = page.tail(keepAlive, redirect == null || !EMPTY_REDIRECT);
+        int length = page.status.length + SERVER_DATE.length + now.length + tail.length
+                + (location != null ? LOCATION.length + location.length + CRLF.length : 0);
+
+        byte[] response = new byte[length];
+        int at = put(response, 0, page.status);
+        if (location != null) {
+            at = put(response, at, LOCATION);
+            at = put(response, at, location);
+            at = put(response, at, CRLF);
+        }
+        at = put(response, at, SERVER_DATE);
+        at = put(response, at, now);
+        put(response, at, tail);
+        return response;
+    }
+
+    /**
+     * Returns the cached page, reading it if it is new or its file has changed.
+     */
+    private static Page page(File file, String status) throws IOException {
+        Key key = new Key(file, status);
+        Page page = pages.get(key);
+        if (page == null) {
+            page = new Page(file, status);
+            pages.put(key, page);
+            return page;
+        }
+        long now = System.currentTimeMillis();
+        if (RELOAD_INTERVAL > 0 && now - page.checked >= RELOAD_INTERVAL) {
+            page.checked = now;
+            if (file.lastModified() != page.modified || file.length() != page.length) {
+                try {
+                    page = new Page(file, status);
+                    pages.put(key, page);
+                } catch (IOException e) {
+                    // Keep serving the copy in memory while the file is being replaced
+                    System.err.println("Cannot reload " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Returns the value of the Date header and its line break, formatted again once a second.
+     */
+    static byte[] date() {
+        long second = System.currentTimeMillis() / 1000;
+        Stamp stamp = date;
+        if (stamp.second() != second) {
+            String value = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+            stamp = new Stamp(second, (value + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            date = stamp;
+        }
+        return stamp.value();
+    }
+
+    private static int put(byte[] target, int at, byte[] source) {
+        System.arraycopy(source, 0, target, at, source.length);
+        return at + source.length;
+    }
+}
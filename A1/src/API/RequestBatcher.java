@@ -0,0 +1,148 @@
+package API;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects single-key requests to the same destination made within a short
+ * window into one multi-key request, e.g. READs into an MREAD and WRITEs into an
+ * MWRITE. A batch leaves when its window ends or as soon as it is full; each
+ * caller gets back its own value of the batch reply.
+ */
+public class RequestBatcher {
+
+    /**
+     * Sends one multi-key request.
+     */
+    public interface Sender {
+        /**
+         * @param host    destination host
+         * @param port    destination port
+         * @param command multi-key command such as "MREAD"
+         * @param fields  the fields of every batched request, in order
+         * @return future of the reply values
+         */
+        CompletableFuture<String[]> send(String host, int port, String command, String[] fields);
+    }
+
+    private final Sender sender;
+    private final int maxBatch;
+    private final long windowMicros;
+    private final ConcurrentHashMap<String, Batch> open = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "request-batcher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batched = new AtomicLong();
+
+    /**
+     * Creates a request batcher.
+     *
+     * @param sender       sends the multi-key requests
+     * @param maxBatch     most requests in one batch
+     * @param windowMicros longest a request waits for others to join its batch
+     */
+    public RequestBatcher(Sender sender, int maxBatch, long windowMicros) {
+        this.sender = sender;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.windowMicros = windowMicros;
+    }
+
+    /**
+     * Adds a request to the open batch for its destination and command.
+     *
+     * @param host    destination host
+     * @param port    destination port
+     * @param command multi-key command the request joins, such as "MREAD"
+     * @param fields  fields of this request, e.g. a short URL, or a short and a long URL
+     * @return future of this request's value: its own entry if the reply has one
+     *         value per request, otherwise the single value answering the whole batch
+     */
+    public CompletableFuture<String> submit(String host, int port, String command, String... fields) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        String key = host + ":" + port + " " + command;
+        while (true) {
+            Batch batch = open.computeIfAbsent(key, k -> new Batch(host, port, command));
+            synchronized (batch) {
+                if (batch.sent) continue;
+                Collections.addAll(batch.fields, fields);
+                batch.results.add(result);
+                // The window starts with the first request, so a batch is never sent empty
+                if (batch.results.size() == 1) {
+                    timer.schedule(() -> flush(key, batch), windowMicros, TimeUnit.MICROSECONDS);
+                }
+                if (batch.results.size() < maxBatch) return result;
+            }
+            flush(key, batch);
+            return result;
+        }
+    }
+
+    /**
+     * Summarizes the batching counters on one line.
+     *
+     * @return number of batches and average batch size
+     */
+    public String stats() {
+        long n = batches.get();
+        return "batches=" + n + " avgBatch=" + String.format("%.2f", n == 0 ? 0.0 : (double) batched.get() / n);
+    }
+
+    private void flush(String key, Batch batch) {
+        synchronized (batch) {
+            if (batch.sent) return;
+            batch.sent = true;
+        }
+        open.remove(key, batch);
+        batches.incrementAndGet();
+        batched.addAndGet(batch.results.size());
+        try {
+            sender.send(batch.host, batch.port, batch.command, batch.fields.toArray(new String[0]))
+                    .whenComplete((reply, e) -> complete(batch, reply, e));
+        } catch (RuntimeException e) {
+            complete(batch, null, e);
+        }
+    }
+
+    private static void complete(Batch batch, String[] reply, Throwable e) {
+        for (int i = 0; i < batch.results.size(); i++) {
+            CompletableFuture<String> result = batch.results.get(i);
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else if (reply.length == batch.results.size()) {
+                result.complete(reply[i]);
+            } else if (reply.length > 0) {
+                result.complete(reply[0]);
+            } else {
+                result.completeExceptionally(new IllegalStateException("Empty batch reply"));
+            }
+        }
+    }
+
+    /**
+     * Requests to one destination waiting to be sent together.
+     */
+    private static class Batch {
+        final String host;
+        final int port;
+        final String command;
+        final ArrayList<String> fields = new ArrayList<>();
+        final ArrayList<CompletableFuture<String>> results = new ArrayList<>();
+        boolean sent = false;
+
+        Batch(String host, int port, String command) {
+            this.host = host;
+            this.port = port;
+            this.command = command;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package API;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable parser for the first line of a request, working on its bytes.
+ * The line is read into a buffer owned by the parser and split into method,
+ * path and the short, long and consistency query values by recording offsets,
+ * so parsing allocates nothing; strings are only created for the values a
+ * caller asks for. Matches what the shortener's request patterns accepted:
+ * "METHOD /target VERSION" with single tokens, and PUT targets of the form
+ * "/?short=...&long=...[&consistency=word]".
+ * One instance serves one connection at a time.
+ */
+public class RequestLine {
+
+    private static final byte[] SHORT_KEY = "/?short=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LONG_KEY = "&long=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONSISTENCY_KEY = "&consistency=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FAVICON = "favicon.ico".getBytes(StandardCharsets.US_ASCII);
+    private static final boolean[] WORD_CHARS = new boolean[128];
+
+    static {
+        for (int c = 0; c < 128; c++) {
+            WORD_CHARS[c] = Character.isLetterOrDigit(c) || c == '_';
+        }
+    }
+
+    private byte[] line = new byte[256];
+    private int length;
+    private String text;
+
+    // Offsets into the line, -1 when a part is absent
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private boolean path;
+    private int shortStart;
+    private int shortEnd;
+    private int longStart;
+    private int longEnd;
+    private int levelStart;
+    private int levelEnd;
+
+    /**
+     * Reads the next line from a stream, without its line terminator, and parses it.
+     *
+     * @param in stream to read from
+     * @return false at the end of the stream
+     * @throws IOException if the stream fails or the line is longer than an HTTP head may be
+     */
+    public boolean read(InputStream in) throws IOException {
+        length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length == line.length) {
+                if (length >= HttpHead.MAX_HEAD) throw new IOException("Request line too long");
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = (byte) b;
+        }
+        if (b == -1 && length == 0) return false;
+        if (length > 0 && line[length - 1] == '\r') length--;
+        parse();
+        return true;
+    }
+
+    /**
+     * Parses a line held in a buffer.
+     *
+     * @param buffer buffer holding the line
+     * @param from   index of the first byte
+     * @param to     index of the newline, or of the end of the line
+     */
+    public void parse(ByteBuffer buffer, int from, int to) {
+        if (to > from && buffer.get(to - 1) == '\r') to--;
+        length = to - from;
+        if (line.length < length) line = new byte[Integer.highestOneBit(length) << 1];
+        buffer.get(from, line, 0, length);
+        parse();
+    }
+
+    private void parse() {
+        text = null;
+        methodEnd = targetStart = targetEnd = versionStart = -1;
+        path = false;
+        shortStart = shortEnd = longStart = longEnd = levelStart = levelEnd = -1;
+
+        // Exactly three tokens: method, target and version
+        int i = 0;
+        while (i < length && !Utils.isWhitespace(line[i])) i++;
+        if (i == 0 || i == length) return;
+        int methodEnd = i;
+        while (i < length && Utils.isWhitespace(line[i])) i++;
+        int targetStart = i;
+        while (i < length && !Utils.isWhitespace(line[i])) i++;
+        int targetEnd = i;
+        while (i < length && Utils.isWhitespace(line[i])) i++;
+        if (targetEnd == targetStart || i == length) return;
+        int versionStart = i;
+        while (i < length && !Utils.isWhitespace(line[i])) i++;
+        if (i != length) return;
+        this.methodEnd = methodEnd;
+        this.targetStart = targetStart;
+        this.targetEnd = targetEnd;
+        this.versionStart = versionStart;
+        path = line[targetStart] == '/' && targetEnd - targetStart >= 2;
+        if (!path) return;
+
+        if (!isMethod("PUT") || !startsWith(targetStart, targetEnd, SHORT_KEY)) return;
+        int start = targetStart + SHORT_KEY.length;
+        int split = indexOf(start + 1, targetEnd, LONG_KEY);
+        if (split < 0 || split + LONG_KEY.length >= targetEnd) return;
+        shortStart = start;
+        shortEnd = split;
+        longStart = split + LONG_KEY.length;
+        longEnd = targetEnd;
+        // The long URL ends at the first "&consistency=" that is followed by a word up to the end
+        for (int at = indexOf(longStart + 1, targetEnd, CONSISTENCY_KEY); at >= 0;
+             at = indexOf(at + 1, targetEnd, CONSISTENCY_KEY)) {
+            int word = at + CONSISTENCY_KEY.length;
+            if (word < targetEnd && isWord(word, targetEnd)) {
+                longEnd = at;
+                levelStart = word;
+                levelEnd = targetEnd;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the whole line equals a command such as "STATUS".
+     *
+     * @param command ASCII command
+     * @return true if the line is exactly the command
+     */
+    public boolean is(String command) {
+        return length == command.length() && Utils.startsWith(line, 0, length, command);
+    }
+
+    /**
+     * Returns true if the line is an HTTP request line, so headers follow it.
+     *
+     * @return true for "METHOD target HTTP/x.y"
+     */
+    public boolean isHttp() {
+        return versionStart >= 0 && Utils.startsWith(line, versionStart, length, "HTTP/");
+    }
+
+    /**
+     * Returns true if the line is a request whose target has a path after the '/'.
+     *
+     * @return true for "METHOD /path VERSION"
+     */
+    public boolean hasPath() {
+        return path;
+    }
+
+    /**
+     * Returns true for a GET request with a path.
+     *
+     * @return true for "GET /path VERSION"
+     */
+    public boolean isGet() {
+        return hasPath() && isMethod("GET");
+    }
+
+    /**
+     * Returns true for a POST request with a path.
+     *
+     * @return true for "POST /path VERSION"
+     */
+    public boolean isPost() {
+        return hasPath() && isMethod("POST");
+    }
+
+    /**
+     * Returns true for a PUT request carrying a short and a long URL.
+     *
+     * @return true for "PUT /?short=...&long=... VERSION"
+     */
+    public boolean isPut() {
+        return shortStart >= 0;
+    }
+
+    /**
+     * Returns true if the line mentions favicon.ico anywhere.
+     *
+     * @return true for favicon requests
+     */
+    public boolean isFavicon() {
+        return indexOf(0, length, FAVICON) >= 0;
+    }
+
+    /**
+     * @return the path without its leading '/', or null if there is none
+     */
+    public String path() {
+        return hasPath() ? string(targetStart + 1, targetEnd) : null;
+    }
+
+    /**
+     * @return the short URL of a PUT request, or null
+     */
+    public String shortURL() {
+        return isPut() ? string(shortStart, shortEnd) : null;
+    }
+
+    /**
+     * @return the long URL of a PUT request, or null
+     */
+    public String longURL() {
+        return isPut() ? string(longStart, longEnd) : null;
+    }
+
+    /**
+     * @return the consistency level of a PUT request, or null if none was given
+     */
+    public String consistency() {
+        return levelStart >= 0 ? string(levelStart, levelEnd) : null;
+    }
+
+    /**
+     * Validates the short URL of a PUT request in place.
+     *
+     * @return true if the short URL is valid
+     */
+    public boolean hasValidShort() {
+        return isPut() && Utils.isValidShort(line, shortStart, shortEnd);
+    }
+
+    /**
+     * Validates the long URL of a PUT request in place.
+     *
+     * @return true if the long URL is valid
+     */
+    public boolean hasValidLong() {
+        return isPut() && Utils.isValidLong(line, longStart, longEnd);
+    }
+
+    /**
+     * Returns the whole line as a string, created once per line.
+     *
+     * @return the line
+     */
+    @Override
+    public String toString() {
+        if (text == null) text = string(0, length);
+        return text;
+    }
+
+    private boolean isMethod(String method) {
+        return methodEnd == method.length() && Utils.startsWith(line, 0, methodEnd, method);
+    }
+
+    private boolean isWord(int from, int to) {
+        for (int i = from; i < to; i++) {
+            int c = line[i] & 0xff;
+            if (c >= 128 || !WORD_CHARS[c]) return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[from + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private int indexOf(int from, int to, byte[] needle) {
+        for (int i = from; i + needle.length <= to; i++) {
+            if (startsWith(i, to, needle)) return i;
+        }
+        return -1;
+    }
+
+    private String string(int from, int to) {
+        return new String(line, from, to - from, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,119 @@
+package API;
+
+import java.util.ArrayList;
+
+/**
+ * A hierarchical timing wheel of deadlines.
+ * Level 0 has one slot per tick; each higher level has slots 64 times wider.
+ * A deadline is kept at the lowest level that can still tell it apart from the
+ * current tick and moves down a level when its slot comes up, so advancing the
+ * wheel only touches the deadlines that are due (plus those being cascaded),
+ * never every scheduled key.
+ */
+public class TimingWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 4;
+
+    /**
+     * A scheduled item with its deadline.
+     */
+    private record Timer<T>(T item, long deadline) {}
+
+    private final long tick;
+    private final long origin = System.nanoTime();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayList<Timer<T>>[][] buckets = new ArrayList[LEVELS][SLOTS];
+    private long currentTick = 0;
+    private long pending = 0;
+
+    /**
+     * Creates a wheel.
+     *
+     * @param tick tick length in nanoseconds, the resolution of deadlines
+     */
+    public TimingWheel(long tick) {
+        this.tick = tick;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                buckets[level][slot] = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Schedules an item to come due at a deadline.
+     *
+     * @param item     item
+     * @param deadline System.nanoTime() value at which the item is due
+     */
+    public synchronized void schedule(T item, long deadline) {
+        place(new Timer<>(item, deadline));
+        pending++;
+    }
+
+    /**
+     * Advances the wheel to the given time and collects the due items.
+     *
+     * @param now System.nanoTime() value to advance to
+     * @param due list receiving the items that came due
+     */
+    public synchronized void advance(long now, ArrayList<T> due) {
+        long target = (now - origin) / tick;
+        while (currentTick < target) {
+            currentTick++;
+            // Cascade the widest levels first; a deadline that falls on the current tick is due at once
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) != 0) continue;
+                ArrayList<Timer<T>> bucket = buckets[level][(int) ((currentTick >>> (BITS * level)) & (SLOTS - 1))];
+                if (bucket.isEmpty()) continue;
+                ArrayList<Timer<T>> cascading = new ArrayList<>(bucket);
+                bucket.clear();
+                for (Timer<T> timer : cascading) {
+                    if (tickOf(timer) <= currentTick) {
+                        due.add(timer.item());
+                        pending--;
+                    } else {
+                        place(timer);
+                    }
+                }
+            }
+            ArrayList<Timer<T>> bucket = buckets[0][(int) (currentTick & (SLOTS - 1))];
+            for (Timer<T> timer : bucket) {
+                due.add(timer.item());
+            }
+            pending -= bucket.size();
+            bucket.clear();
+        }
+    }
+
+    /**
+     * Returns the number of deadlines still scheduled.
+     *
+     * @return pending deadlines
+     */
+    public synchronized long pending() {
+        return pending;
+    }
+
+    /**
+     * Returns the tick a deadline comes due at.
+     */
+    private long tickOf(Timer<T> timer) {
+        return (timer.deadline() - origin + tick - 1) / tick;
+    }
+
+    /**
+     * Puts a deadline in the lowest level whose slot range does not contain the current tick.
+     * A deadline at or before the current tick goes in the next one.
+     */
+    private void place(Timer<T> timer) {
+        long at = Math.max(currentTick + 1, tickOf(timer));
+        int level = 0;
+        while (level < LEVELS - 1 && (at >>> (BITS * (level + 1))) != (currentTick >>> (BITS * (level + 1)))) {
+            level++;
+        }
+        buckets[level][(int) ((at >>> (BITS * level)) & (SLOTS - 1))].add(timer);
+    }
+}
@@ -0,0 +1,307 @@
+package API;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, concurrent short-to-long URL cache.
+ * Keys are spread over lock-striped LRU segments so lookups on different
+ * stripes never contend. Entries expire after a fixed time to live, and the
+ * cache can be bounded by entry count, by approximate bytes, or both. Expired
+ * entries are never returned, and each stripe keeps a timing wheel of expiry
+ * deadlines so {@link #cleanUp} only touches entries that are due. With
+ * admission enabled, a new key only replaces the LRU victim of a full stripe
+ * if a TinyLFU frequency sketch says it is requested more often.
+ */
+public class UrlCache {
+
+    private static final int STRIPES = 64;
+    private static final int ENTRY_OVERHEAD = 96; // Approximate bytes of map entry, node and string headers
+    private static final long TICK = 100_000_000L; // Expiry resolution of the timing wheels in nanoseconds
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final FrequencySketch sketch;
+    private final long ttl;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder sweeps = new LongAdder();
+    private volatile long lastSweepNanos = 0;
+    private volatile long maxSweepNanos = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries maximum number of entries, 0 for no entry limit
+     * @param maxBytes   maximum approximate size in bytes, 0 for no byte limit
+     * @param ttl        time to live of an entry in milliseconds
+     * @param admission  true to filter new keys through a frequency sketch
+     */
+    public UrlCache(long maxEntries, long maxBytes, long ttl, boolean admission) {
+        this.ttl = ttl * 1_000_000L;
+        long stripeEntries = maxEntries > 0 ? Math.max(1, (maxEntries + STRIPES - 1) / STRIPES) : Long.MAX_VALUE;
+        long stripeBytes = maxBytes > 0 ? Math.max(1, (maxBytes + STRIPES - 1) / STRIPES) : Long.MAX_VALUE;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeEntries, stripeBytes);
+        }
+        long capacity = maxEntries > 0 ? maxEntries : Math.max(1, maxBytes / (ENTRY_OVERHEAD + 128));
+        this.sketch = admission ? new FrequencySketch(capacity) : null;
+    }
+
+    /**
+     * Returns the long URL cached for a short URL in a single lookup.
+     *
+     * @param key short URL
+     * @return long URL, or null if it is not cached or has expired
+     */
+    public String get(String key) {
+        if (sketch != null) sketch.increment(key);
+        Stripe stripe = stripeFor(key);
+        String value = null;
+        stripe.lock.lock();
+        try {
+            Entry entry = stripe.map.get(key);
+            if (entry != null) {
+                if (entry.expiresAt - System.nanoTime() > 0) {
+                    value = entry.value;
+                } else {
+                    stripe.remove(key);
+                    expirations.increment();
+                }
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Caches a long URL for a short URL, replacing any previous value.
+     *
+     * @param key   short URL
+     * @param value long URL
+     */
+    public void put(String key, String value) {
+        store(key, value, ttl);
+    }
+
+    /**
+     * Caches a long URL for a short URL for less than the cache's time to live,
+     * such as an entry moved from another cache that keeps its expiry.
+     *
+     * @param key   short URL
+     * @param value long URL
+     * @param ttl   time to live of the entry in milliseconds, at most the cache's own
+     */
+    public void put(String key, String value, long ttl) {
+        store(key, value, Math.min(this.ttl, ttl * 1_000_000L));
+    }
+
+    private void store(String key, String value, long nanos) {
+        if (sketch != null) sketch.increment(key);
+        Stripe stripe = stripeFor(key);
+        Entry entry = new Entry(key, value, System.nanoTime() + nanos, weigh(key, value));
+        stripe.lock.lock();
+        try {
+            boolean present = stripe.map.containsKey(key);
+            stripe.remove(key);
+            while (stripe.isFullFor(entry.weight)) {
+                Map.Entry<String, Entry> eldest = stripe.map.entrySet().iterator().next();
+                boolean expired = eldest.getValue().expiresAt - System.nanoTime() <= 0;
+                if (!expired && !present && sketch != null && sketch.frequency(key) <= sketch.frequency(eldest.getKey())) {
+                    rejections.increment();
+                    return;
+                }
+                stripe.remove(eldest.getKey());
+                if (expired) {
+                    expirations.increment();
+                } else {
+                    evictions.increment();
+                }
+            }
+            stripe.map.put(key, entry);
+            stripe.bytes += entry.weight;
+            stripe.wheel.schedule(entry, entry.expiresAt);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a short URL from the cache.
+     *
+     * @param key short URL
+     */
+    public void invalidate(String key) {
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            stripe.remove(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes entries whose time to live has passed.
+     * Advances every stripe's timing wheel and removes only the entries that came
+     * due, taking the stripe lock once per entry so lookups never wait on a sweep.
+     * The cost is proportional to the number of expired (or since replaced) entries.
+     */
+    public void cleanUp() {
+        long start = System.nanoTime();
+        ArrayList<Entry> due = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            due.clear();
+            stripe.wheel.advance(start, due);
+            for (Entry entry : due) {
+                stripe.lock.lock();
+                try {
+                    // Skip entries that were replaced, invalidated or evicted since they were scheduled
+                    if (stripe.map.remove(entry.key, entry)) {
+                        stripe.bytes -= entry.weight;
+                        expirations.increment();
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        sweeps.increment();
+        lastSweepNanos = elapsed;
+        if (elapsed > maxSweepNanos) maxSweepNanos = elapsed;
+    }
+
+    /**
+     * Returns the number of cached entries.
+     *
+     * @return number of entries
+     */
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.map.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return number of cache hits
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of cache misses
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries evicted to make room
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Summarizes the cache counters on one line.
+     *
+     * @return size, hit, miss, eviction, rejection, expiration and sweep figures
+     */
+    public String stats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        return "size=" + size()
+                + " hits=" + h
+                + " misses=" + m
+                + " hitRate=" + String.format("%.3f", h + m == 0 ? 0.0 : (double) h / (h + m))
+                + " evictions=" + evictions.sum()
+                + " rejections=" + rejections.sum()
+                + " expirations=" + expirations.sum()
+                + " sweeps=" + sweeps.sum()
+                + " lastSweepMicros=" + lastSweepNanos / 1000
+                + " maxSweepMicros=" + maxSweepNanos / 1000
+                + " scheduledExpiries=" + scheduledExpiries();
+    }
+
+    private long scheduledExpiries() {
+        long pending = 0;
+        for (Stripe stripe : stripes) {
+            pending += stripe.wheel.pending();
+        }
+        return pending;
+    }
+
+    private Stripe stripeFor(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    private static int weigh(String key, String value) {
+        return ENTRY_OVERHEAD + 2 * (key.length() + value.length());
+    }
+
+    /**
+     * A cached value with its expiry time and approximate size.
+     */
+    private static final class Entry {
+        final String key;
+        final String value;
+        final long expiresAt;
+        final int weight;
+
+        Entry(String key, String value, long expiresAt, int weight) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * One lock-protected LRU segment of the cache.
+     */
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+        final TimingWheel<Entry> wheel = new TimingWheel<>(TICK);
+        final long maxEntries;
+        final long maxBytes;
+        long bytes = 0;
+
+        Stripe(long maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        boolean isFullFor(int weight) {
+            return !map.isEmpty() && (map.size() + 1 > maxEntries || bytes + weight > maxBytes);
+        }
+
+        void remove(String key) {
+            Entry old = map.remove(key);
+            if (old != null) bytes -= old.weight;
+        }
+    }
+}
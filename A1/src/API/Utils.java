@@ -5,6 +5,7 @@ import Component.Address;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -17,13 +18,33 @@ import java.util.regex.Pattern;
 public class Utils {
 
     /**
-     * Main hash function to check responsibility
+     * Main hash function to check responsibility.
+     * A 64-bit FNV-1a hash over the UTF-8 bytes followed by a murmur finalizer,
+     * so every process and JVM version places a key at the same point.
      * @param msg string to hash
-     * @param num num of active databases
      * @return hashed number
      */
-    public static int hashChecker(String msg, int num){
-        return (Math.floorMod(msg.hashCode(),num));
+    public static long hash(String msg){
+        return hash(msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Same hash as {@link #hash(String)}, over bytes that are already encoded
+     * @param bytes UTF-8 bytes to hash
+     * @return hashed number
+     */
+    public static long hash(byte[] bytes){
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
     }
 
     public static String loadConfig(String path, int item) throws IOException {
@@ -65,23 +86,46 @@ public class Utils {
         return fileData;
     }
 
+    // Lookup tables of the ASCII characters allowed in short URLs and in long URL host names
+    private static final boolean[] SHORT_CHARS = charTable("abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-_");
+    private static final boolean[] HOST_CHARS = charTable("abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-");
+
     /**
      * Returns true if the short URL is valid, otherwise false.
+     * Only letters, digits, '-' and '_' are allowed, up to 100 characters.
      *
      * @return true if the short URL is valid, otherwise false
      */
     public static boolean isValidShort(String shortURL) {
-        if (shortURL.length() > 100) {
+        int length = shortURL.length();
+        if (length == 0 || length > 100) {
             return false;
         }
-        // Change the regex depending on what characters should be allowed
-        Pattern pattern = Pattern.compile("^[a-zA-Z0-9-_]+$");
-        Matcher matcher = pattern.matcher(shortURL);
-        return matcher.matches();
+        for (int i = 0; i < length; i++) {
+            if (!inTable(SHORT_CHARS, shortURL.charAt(i))) return false;
+        }
+        return true;
     }
 
     /**
-     * Returns true if the long URL is valid, otherwise false
+     * Returns true if the short URL held in a byte range is valid, otherwise false.
+     *
+     * @return true if the short URL is valid, otherwise false
+     */
+    public static boolean isValidShort(byte[] bytes, int from, int to) {
+        if (to <= from || to - from > 100) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (!inTable(SHORT_CHARS, bytes[i] & 0xff)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the long URL is valid, otherwise false.
+     * Accepts http:// or https://, a host name label, a dot and at least two
+     * more non-whitespace characters. This is not perfect, but it should be good enough.
      *
      * @return true if the long URL is valid, otherwise false
      */
@@ -89,11 +133,71 @@ public class Utils {
         if (longURL.length() > 100) {
             return false;
         }
-        // This regex is not perfect, but it should be good enough
-        Pattern pattern = Pattern.compile("^https?://[a-zA-Z0-9-]+\\.\\S{2,}$");
-        Matcher matcher = pattern.matcher(longURL.strip());
+        String url = longURL.strip();
+        int i = url.startsWith("https://") ? 8 : url.startsWith("http://") ? 7 : -1;
+        if (i < 0) return false;
+        int host = i;
+        while (i < url.length() && inTable(HOST_CHARS, url.charAt(i))) i++;
+        if (i == host || i >= url.length() || url.charAt(i) != '.') return false;
+        if (url.length() - (i + 1) < 2) return false;
+        for (int j = i + 1; j < url.length(); j++) {
+            if (isWhitespace(url.charAt(j))) return false;
+        }
+        return true;
+    }
 
-        return matcher.matches();
+    /**
+     * Returns true if the long URL held in a byte range is valid, otherwise false.
+     * The range comes from a request line, so it holds no whitespace to strip.
+     *
+     * @return true if the long URL is valid, otherwise false
+     */
+    public static boolean isValidLong(byte[] bytes, int from, int to) {
+        if (to - from > 100) {
+            return false;
+        }
+        int i;
+        if (startsWith(bytes, from, to, "https://")) i = from + 8;
+        else if (startsWith(bytes, from, to, "http://")) i = from + 7;
+        else return false;
+        int host = i;
+        while (i < to && inTable(HOST_CHARS, bytes[i] & 0xff)) i++;
+        if (i == host || i >= to || bytes[i] != '.') return false;
+        if (to - (i + 1) < 2) return false;
+        for (int j = i + 1; j < to; j++) {
+            if (isWhitespace(bytes[j])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a byte range starts with the given ASCII text.
+     */
+    public static boolean startsWith(byte[] bytes, int from, int to, String prefix) {
+        if (to - from < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[from + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true for the characters a regex \s matches.
+     */
+    public static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    private static boolean inTable(boolean[] table, int c) {
+        return c < table.length && table[c];
+    }
+
+    private static boolean[] charTable(String chars) {
+        boolean[] table = new boolean[128];
+        for (int i = 0; i < chars.length(); i++) {
+            table[chars.charAt(i)] = true;
+        }
+        return table;
     }
 
     /**
@@ -113,4 +217,18 @@ public class Utils {
         }
         return addressList;
     }
+
+    /**
+     * Inverse of {@link #parseList}, formats addresses as host/port pairs
+     * @param addressList addresses to format
+     * @return comma separated host/port pairs
+     */
+    public static String formatList(ArrayList<Address> addressList) {
+        StringBuilder addressString = new StringBuilder();
+        for (Address address : addressList) {
+            if (addressString.length() > 0) addressString.append(',');
+            addressString.append(address.host()).append('/').append(address.port());
+        }
+        return addressString.toString();
+    }
 }
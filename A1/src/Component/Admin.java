@@ -1,5 +1,7 @@
 package Component;
 
+import API.ConnectionPool;
+import API.ConsistentHashRing;
 import API.Link;
 import API.Utils;
 
@@ -30,6 +32,15 @@ public class Admin extends Link {
     private final ArrayList<Address> activeDBList = new ArrayList<Address>();
     private final ArrayList<Address> activeNodeList = new ArrayList<Address>();
 
+    // Databases the data is fully placed on, and the task moving it to activeDBList
+    private ArrayList<Address> placedDBList = new ArrayList<Address>();
+    private Rebalancer rebalancer = null;
+    private final ExecutorService rebalanceExecutor = Executors.newSingleThreadExecutor();
+    private final ConnectionPool dbPool = new ConnectionPool(4, 30000, 2000, 10000);
+
+    // Databases relaunched after a failure, restored from their peers once they answer again
+    private final ArrayList<Address> relaunchedDBList = new ArrayList<Address>();
+
     /**
      * Creates an admin tool object
      */
@@ -100,6 +111,7 @@ public class Admin extends Link {
         } else if (address.type().equals("DB")){
             if (!activeDBList.contains(address) && com.equals("update")) {
                 activeDBList.add(address);
+                if (relaunchedDBList.remove(address)) restoreDB(address);
                 notifyNode();
             } else if (activeDBList.contains(address) && com.equals("remove")) {
                 activeDBList.remove(address);
@@ -114,15 +126,50 @@ public class Admin extends Link {
         }
     }
     
+    /**
+     *	Ask a relaunched database to copy the pairs it owns from the other active databases.
+     *	Each peer sends only the pairs it is the first other owner of, so every pair comes once.
+     */
+    private void restoreDB(Address address) {
+        ArrayList<Address> sources = new ArrayList<Address>(activeDBList);
+        sources.remove(address);
+        if (sources.isEmpty()) return;
+        String request = addressListToString(sources) + " " + ConsistentHashRing.REPLICATION_FACTOR + " "
+                + address.host() + "/" + address.port() + " " + addressListToString(activeDBList);
+        String res = dbPool.sendMsg(address.host(), address.port(), "RESTORE", request);
+        System.out.println("Restore " + address.host() + ":" + address.port() + " from " + sources.size() + " databases: " + res);
+    }
+
     /**
      *	Send the new active database list to all the active coordinator
+     *	and start moving data to its new owners.
+     *	Until the move finishes, coordinators also read from the previous placement.
      */
     private synchronized void notifyNode() {
-    	String addressList = addressListToString(activeDBList);
+        if (rebalancer != null) rebalancer.cancel();
+        sendToNodes("HANDOFF", addressListToString(placedDBList));
+        sendToNodes("UPDATE", addressListToString(activeDBList));
+        rebalancer = new Rebalancer(dbPool, placedDBList, activeDBList, this::finishRebalance);
+        rebalanceExecutor.execute(rebalancer);
+    }
+
+    /**
+     *	Called by the rebalancer once all data sits on its new owners
+     */
+    private synchronized void finishRebalance(Rebalancer done) {
+        if (done != rebalancer) return;
+        placedDBList = done.newList();
+        sendToNodes("HANDOFF", "");
+    }
+
+    /**
+     *	Send a message to all the active coordinator, retrying once
+     */
+    private synchronized void sendToNodes(String code, String content) {
         String res = null;
         for (Address address : activeNodeList) {
-            res = sendMsg(address.host(), address.port(), "UPDATE", addressList);
-            if (res == null) sendMsg(address.host(), address.port(), "UPDATE", addressList);
+            res = sendMsg(address.host(), address.port(), code, content);
+            if (res == null) sendMsg(address.host(), address.port(), code, content);
         }
     }
     
@@ -148,7 +195,9 @@ public class Admin extends Link {
         String currPath = System.getProperty("user.dir");
         String classPath = currPath + "/out/production/A1:" + currPath + "/src/Database/sqlite-jdbc-3.39.3.0.jar";
 
-        String sshCmd = "cd " + currPath + "; nohup java -cp " + classPath;
+        String javaOpts = System.getenv().getOrDefault("JAVA_OPTS", "");
+
+        String sshCmd = "cd " + currPath + "; nohup java " + javaOpts + " -cp " + classPath;
         if (address.type().equals("LB")) {
             sshCmd += " Component.LaunchLoadBalancer";
         } else if (address.type().equals("NODE")) {
@@ -174,6 +223,7 @@ public class Admin extends Link {
                     && !activeNodeList.contains(address)
                     && !activeDBList.contains(address)) {
                 launchProcess(address);
+                if (address.type().equals("DB") && !relaunchedDBList.contains(address)) relaunchedDBList.add(address);
             }
         }
     }
@@ -207,7 +257,7 @@ public class Admin extends Link {
                 File file = new File(ROOT, DEFAULT);
                 sendHTML(file, "HTTP/1.1 200 OK", out, dataOut);
             } else if (refreshPattern.matcher(input).matches()) {
-                sendDiv(out, dataOut, knownServerList, activeLBList, activeDBList, activeNodeList);
+                sendDiv(out, dataOut, knownServerList, activeLBList, activeDBList, activeNodeList, rebalanceStatus());
             } else if (addressGet.matches()) {
                 String message = scale(addressGet.group(1), addressGet.group(2), addressGet.group(3));
                 System.out.println(message);
@@ -263,12 +313,14 @@ public class Admin extends Link {
      *	Parse the active list to string for sending through socket
      */
     private String addressListToString(ArrayList<Address> addressList) {
-    	String addressStringList = "";
-    	for (Address address : addressList) {
-    		addressStringList = addressStringList+address.host()+"/"+address.port()+",";
-    	}
-    	if (addressStringList.isEmpty()) return "";
-    	return addressStringList.substring(0, addressStringList.length() - 1);
+    	return Utils.formatList(addressList);
+    }
+
+    /**
+     *	Progress of the current or last rebalance, for the monitoring page
+     */
+    private synchronized String rebalanceStatus() {
+        return rebalancer == null ? "" : rebalancer.progress();
     }
     
     /**
@@ -307,6 +359,7 @@ public class Admin extends Link {
             p = Integer.parseInt(scanner.next().strip());
             knownServerList.add(new Address("DB", h, p));
             activeDBList.add(new Address("DB", h, p));
+            placedDBList.add(new Address("DB", h, p));
         }
     }
 }
@@ -0,0 +1,610 @@
+package Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Stores pairs in an append-only log, in the manner of Bitcask.
+ * The log is a directory of numbered segment files. Every commit appends its
+ * records to the newest segment in one write, and an in-memory hash index maps
+ * each short URL to the place of its latest record, so a read is one lookup and
+ * one positional read. Records carry a CRC and a sequence number:
+ *
+ * <pre>
+ * int crc | long sequence | int key size | int value size | key | value
+ * </pre>
+ *
+ * Once a segment is full it is sealed and a hint file listing the key and place
+ * of each of its records is written next to it, so at startup the index is
+ * rebuilt from the hints without reading the values. A background task copies
+ * the live records of segments that are mostly overwritten into new segments and
+ * deletes the old ones. The sequence number decides which record of a key is the
+ * latest when the index is rebuilt, whatever segments the records ended up in.
+ */
+class BitcaskEngine implements StorageEngine {
+
+    static final long SEGMENT_BYTES = Long.getLong("db.segmentBytes", 64L << 20);                          // Size at which the log moves on to a new segment
+    static final double COMPACT_RATIO = Double.parseDouble(System.getProperty("db.compactRatio", "0.5")); // Share of overwritten bytes that gets a segment compacted
+    static final long COMPACT_INTERVAL = Long.getLong("db.compactInterval", 60000);                      // Milliseconds between compaction checks, 0 to never compact
+    static final boolean SYNC = Boolean.getBoolean("db.logSync");                                         // Force each commit to the disk rather than leave it to the OS
+
+    private static final int HEADER = 20;
+    private static final int MAX_KEY = 1 << 16;
+    private static final int MAX_VALUE = 1 << 24;
+    private static final int READ_BUFFER = 1 << 20;
+
+    private final File dir;
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicInteger nextSegment = new AtomicInteger();
+    // Held while a commit or a compaction moves index entries
+    private final ReentrantLock indexLock = new ReentrantLock();
+    // Scans and snapshots hold the read lock, deleting compacted segments takes the write lock
+    private final ReentrantReadWriteLock retireLock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "db-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Used by the committing thread only
+    private final LinkedHashMap<String, String> staged = new LinkedHashMap<>();
+    private long nextSeq = 1;
+    private volatile Segment active;
+
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private volatile long rebuildMillis = 0;
+
+    /**
+     * Where the latest record of a key is.
+     */
+    private record Location(int segment, long offset, int size, long seq) {}
+
+    /**
+     * A record read back from a segment.
+     */
+    private record Record(String key, String value, long seq, long offset, int size) {}
+
+    private interface RecordVisitor {
+        /**
+         * @return false to stop at this record
+         */
+        boolean visit(Record record) throws IOException;
+    }
+
+    /**
+     * One file of the log.
+     */
+    private static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final AtomicLong size;
+        final AtomicLong dead = new AtomicLong();
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = new AtomicLong(channel.size());
+        }
+
+        File hint() {
+            return new File(file.getParentFile(), id + ".hint");
+        }
+    }
+
+    /**
+     * Opens the log in a directory, creating it if needed, and rebuilds the index.
+     *
+     * @param path directory of the segment files
+     * @throws IOException if the log cannot be read
+     */
+    BitcaskEngine(String path) throws IOException {
+        dir = new File(path);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        long start = System.currentTimeMillis();
+
+        ArrayList<Integer> ids = new ArrayList<>();
+        String[] names = dir.list();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.matches("\\d+\\.log")) ids.add(Integer.parseInt(name.substring(0, name.length() - 4)));
+        }
+        ids.sort(null);
+        ArrayList<Segment> unhinted = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = new Segment(ids.get(i), new File(dir, ids.get(i) + ".log"));
+            segments.put(segment.id, segment);
+            if (loadHint(segment)) continue;
+            long end = forEachRecord(segment, 0, record -> {
+                track(record.key(), new Location(segment.id, record.offset(), record.size(), record.seq()));
+                return true;
+            });
+            if (end < segment.size.get()) {
+                if (i == ids.size() - 1) {
+                    // A write cut short by a crash, drop it
+                    System.out.println("Log: truncating " + segment.file + " at " + end);
+                    segment.channel.truncate(end);
+                    segment.size.set(end);
+                } else {
+                    System.out.println("Log: ignoring damaged records in " + segment.file + " after " + end);
+                    segment.dead.addAndGet(segment.size.get() - end);
+                }
+            }
+            unhinted.add(segment);
+        }
+        nextSegment.set(ids.isEmpty() ? 0 : ids.get(ids.size() - 1) + 1);
+
+        // Keep appending to the last segment unless it is full or already sealed with a hint
+        Segment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (last != null && last.size.get() < SEGMENT_BYTES && !last.hint().exists()) {
+            active = last;
+            unhinted.remove(last);
+        } else {
+            active = newSegment();
+        }
+        for (Segment segment : unhinted) {
+            background.execute(() -> writeHint(segment));
+        }
+        if (COMPACT_INTERVAL > 0) {
+            background.scheduleWithFixedDelay(this::compact, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        rebuildMillis = System.currentTimeMillis() - start;
+        System.out.println("Log: " + index.size() + " keys in " + segments.size() + " segments, index rebuilt in " + rebuildMillis + " ms");
+    }
+
+    /**
+     * Adds a record found while rebuilding the index, keeping the one with the highest sequence number.
+     */
+    private void track(String key, Location location) {
+        Location old = index.get(key);
+        if (old == null || old.seq() < location.seq()) {
+            index.put(key, location);
+            if (old != null) dead(old);
+        } else {
+            dead(location);
+        }
+        if (location.seq() >= nextSeq) nextSeq = location.seq() + 1;
+    }
+
+    private void dead(Location location) {
+        Segment segment = segments.get(location.segment());
+        if (segment != null) segment.dead.addAndGet(location.size());
+    }
+
+    /**
+     * Reads the latest record of the key. A compaction may delete the segment
+     * between the index lookup and the read, in which case the index already
+     * points to the copy and the lookup is made again.
+     */
+    @Override
+    public String read(String shortURL) throws IOException {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location location = index.get(shortURL);
+            if (location == null) return null;
+            Segment segment = segments.get(location.segment());
+            if (segment == null) continue;
+            try {
+                Record record = readRecord(segment, location);
+                if (!record.key().equals(shortURL)) throw new IOException("Log: index points to another key at " + location);
+                return record.value();
+            } catch (ClosedChannelException e) {
+                // Compacted meanwhile
+            }
+        }
+        throw new IOException("Log: cannot read " + shortURL + " while its segment moves");
+    }
+
+    private Record readRecord(Segment segment, Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.size());
+        readFully(segment.channel, buffer, location.offset());
+        Record record = decode(buffer, 0, location.offset());
+        if (record == null) throw new IOException("Log: damaged record in " + segment.file + " at " + location.offset());
+        return record;
+    }
+
+    @Override
+    public void put(String[] pairs, boolean replace) {
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            if (!replace && (staged.containsKey(pairs[i]) || index.containsKey(pairs[i]))) continue;
+            staged.put(pairs[i], pairs[i + 1]);
+        }
+    }
+
+    /**
+     * Appends the staged records in one write, then points the index at them.
+     */
+    @Override
+    public void commit() throws IOException {
+        if (staged.isEmpty()) return;
+        if (active.size.get() >= SEGMENT_BYTES) {
+            Segment sealed = active;
+            active = newSegment();
+            background.execute(() -> writeHint(sealed));
+        }
+        Segment segment = active;
+        long base = segment.size.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(staged.size() * 128);
+        ArrayList<Location> locations = new ArrayList<>(staged.size());
+        for (Map.Entry<String, String> pair : staged.entrySet()) {
+            byte[] record = encode(pair.getKey(), pair.getValue(), nextSeq++);
+            locations.add(new Location(segment.id, base + out.size(), record.length, nextSeq - 1));
+            out.write(record, 0, record.length);
+        }
+        ByteBuffer data = ByteBuffer.wrap(out.toByteArray());
+        long position = base;
+        while (data.hasRemaining()) {
+            position += segment.channel.write(data, position);
+        }
+        if (SYNC) segment.channel.force(false);
+        segment.size.set(position);
+
+        indexLock.lock();
+        try {
+            int i = 0;
+            for (String key : staged.keySet()) {
+                Location old = index.put(key, locations.get(i++));
+                if (old != null) dead(old);
+            }
+        } finally {
+            indexLock.unlock();
+        }
+        staged.clear();
+    }
+
+    /**
+     * Nothing reaches the log before commit, so only the staged pairs are dropped.
+     * A failed commit may leave bytes past the end of the segment, which the next
+     * commit overwrites.
+     */
+    @Override
+    public void rollback() {
+        staged.clear();
+    }
+
+    /**
+     * Walks the segments in order, visiting the records that are the latest of their
+     * key. The cursor is a segment number and an offset. Compaction only moves records
+     * into segments numbered above every existing one, so no record is missed; a
+     * record moved past the cursor may be visited twice.
+     */
+    @Override
+    public String scan(String cursor, int rows, Visitor visitor) throws IOException {
+        int from = 0;
+        long offset = 0;
+        if (!cursor.isEmpty()) {
+            int colon = cursor.indexOf(':');
+            from = Integer.parseInt(cursor.substring(0, colon));
+            offset = Long.parseLong(cursor.substring(colon + 1));
+        }
+        int[] visited = {0};
+        retireLock.readLock().lock();
+        try {
+            for (Segment segment : segments.tailMap(from, true).values()) {
+                long end = forEachRecord(segment, segment.id == from ? offset : 0, record -> {
+                    Location location = index.get(record.key());
+                    if (location != null && location.segment() == segment.id && location.offset() == record.offset()) {
+                        visitor.visit(record.key(), record.value());
+                        visited[0]++;
+                    }
+                    return visited[0] < rows;
+                });
+                if (visited[0] >= rows) return segment.id + ":" + end;
+            }
+        } finally {
+            retireLock.readLock().unlock();
+        }
+        return null;
+    }
+
+    /**
+     * Copies the index, holding up commits only while the copy is made, then reads
+     * the records in file order. Compacted segments are kept until the snapshot ends.
+     */
+    @Override
+    public void snapshot(Visitor visitor) throws IOException {
+        retireLock.readLock().lock();
+        try {
+            ArrayList<Location> locations = new ArrayList<>(index.size());
+            HashMap<Integer, Segment> pinned;
+            indexLock.lock();
+            try {
+                locations.addAll(index.values());
+                pinned = new HashMap<>(segments);
+            } finally {
+                indexLock.unlock();
+            }
+            locations.sort(Comparator.comparingInt(Location::segment).thenComparingLong(Location::offset));
+            for (Location location : locations) {
+                Segment segment = pinned.get(location.segment());
+                Record record = readRecord(segment, location);
+                visitor.visit(record.key(), record.value());
+            }
+        } finally {
+            retireLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the live records of mostly overwritten segments into new segments,
+     * moves their index entries unless a newer write came in meanwhile, and
+     * deletes the old segments. Runs on the background thread.
+     */
+    private void compact() {
+        ArrayList<Segment> victims = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            long size = segment.size.get();
+            if (segment != active && size > 0 && segment.dead.get() >= COMPACT_RATIO * size) victims.add(segment);
+        }
+        if (victims.isEmpty()) return;
+        Segment out = null;
+        try {
+            for (Segment victim : victims) {
+                if (out == null || out.size.get() >= SEGMENT_BYTES) {
+                    if (out != null) writeHint(out);
+                    out = newSegment();
+                }
+                Segment target = out;
+                ArrayList<String> keys = new ArrayList<>();
+                ArrayList<Location> from = new ArrayList<>();
+                ArrayList<Location> to = new ArrayList<>();
+                ByteArrayOutputStream copied = new ByteArrayOutputStream();
+                long base = target.size.get();
+                forEachRecord(victim, 0, record -> {
+                    Location location = index.get(record.key());
+                    if (location != null && location.segment() == victim.id && location.offset() == record.offset()) {
+                        byte[] data = encode(record.key(), record.value(), record.seq());
+                        keys.add(record.key());
+                        from.add(location);
+                        to.add(new Location(target.id, base + copied.size(), data.length, record.seq()));
+                        copied.write(data, 0, data.length);
+                    }
+                    return true;
+                });
+                ByteBuffer data = ByteBuffer.wrap(copied.toByteArray());
+                long position = base;
+                while (data.hasRemaining()) {
+                    position += target.channel.write(data, position);
+                }
+                target.channel.force(false);
+                target.size.set(position);
+
+                indexLock.lock();
+                try {
+                    for (int i = 0; i < keys.size(); i++) {
+                        // A record overwritten since it was copied stays dead in the new segment
+                        if (!index.replace(keys.get(i), from.get(i), to.get(i))) target.dead.addAndGet(to.get(i).size());
+                    }
+                    segments.remove(victim.id);
+                } finally {
+                    indexLock.unlock();
+                }
+                retireLock.writeLock().lock();
+                try {
+                    victim.channel.close();
+                    Files.deleteIfExists(victim.file.toPath());
+                    Files.deleteIfExists(victim.hint().toPath());
+                } finally {
+                    retireLock.writeLock().unlock();
+                }
+                compactions.incrementAndGet();
+                reclaimedBytes.addAndGet(victim.size.get() - (position - base));
+            }
+            if (out.size.get() > 0) {
+                writeHint(out);
+            } else {
+                // Nothing was live, so no new segment is needed
+                segments.remove(out.id);
+                out.channel.close();
+                Files.deleteIfExists(out.file.toPath());
+            }
+        } catch (IOException e) {
+            System.out.println("Log compaction error: " + e);
+        }
+    }
+
+    /**
+     * Writes the hint file of a sealed segment: for each record its key size,
+     * sequence number, offset, size and key, followed by a CRC of all of it.
+     */
+    private void writeHint(Segment segment) {
+        if (!segments.containsKey(segment.id)) return;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            forEachRecord(segment, 0, record -> {
+                byte[] key = record.key().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.writeLong(record.seq());
+                out.writeLong(record.offset());
+                out.writeInt(record.size());
+                out.write(key);
+                return true;
+            });
+            CRC32C crc = new CRC32C();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+            File temp = new File(dir, segment.id + ".hint.tmp");
+            Files.write(temp.toPath(), bytes.toByteArray());
+            Files.move(temp.toPath(), segment.hint().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Log: cannot write hint of " + segment.file + ": " + e);
+        }
+    }
+
+    /**
+     * Rebuilds the index entries of a segment from its hint file.
+     *
+     * @return false if there is no usable hint file, so the segment must be read
+     */
+    private boolean loadHint(Segment segment) {
+        File file = segment.hint();
+        if (!file.exists()) return false;
+        try {
+            ByteBuffer hint = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            int length = hint.capacity() - 4;
+            CRC32C crc = new CRC32C();
+            crc.update(hint.array(), 0, Math.max(0, length));
+            if (length < 0 || hint.getInt(length) != (int) crc.getValue()) {
+                System.out.println("Log: damaged hint " + file + ", reading the segment instead");
+                return false;
+            }
+            while (hint.position() < length) {
+                int keySize = hint.getInt();
+                long seq = hint.getLong();
+                long offset = hint.getLong();
+                int size = hint.getInt();
+                String key = new String(hint.array(), hint.position(), keySize, StandardCharsets.UTF_8);
+                hint.position(hint.position() + keySize);
+                track(key, new Location(segment.id, offset, size, seq));
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Log: unusable hint " + file + ": " + e);
+            return false;
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        int id = nextSegment.getAndIncrement();
+        Segment segment = new Segment(id, new File(dir, id + ".log"));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Reads the records of a segment in order from an offset up to its current size.
+     *
+     * @return offset after the last record read, short of the size if a record is damaged or cut off
+     */
+    private long forEachRecord(Segment segment, long from, RecordVisitor visitor) throws IOException {
+        long end = segment.size.get();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        buffer.limit(0);
+        long start = from;      // File offset of the start of the buffer
+        long offset = from;     // File offset of the next record
+        while (offset < end) {
+            int at = (int) (offset - start);
+            int available = buffer.limit() - at;
+            int size = available >= HEADER ? recordSize(buffer, at) : -1;
+            if (size == 0) return offset;
+            if (size < 0 || available < size) {
+                // Refill the buffer from the next record on
+                int needed = Math.max(HEADER, size);
+                if (needed > buffer.capacity()) buffer = ByteBuffer.allocate(needed);
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+                start = offset;
+                readFully(segment.channel, buffer, offset);
+                buffer.flip();
+                if (buffer.limit() < needed) return offset;
+                continue;
+            }
+            Record record = decode(buffer, at, offset);
+            if (record == null) return offset;
+            offset += size;
+            if (!visitor.visit(record)) return offset;
+        }
+        return offset;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) break;
+            position += n;
+        }
+    }
+
+    /**
+     * @return size of the record starting at a buffer index, 0 if its header is damaged
+     */
+    private static int recordSize(ByteBuffer buffer, int at) {
+        int keySize = buffer.getInt(at + 12);
+        int valueSize = buffer.getInt(at + 16);
+        if (keySize < 0 || keySize > MAX_KEY || valueSize < 0 || valueSize > MAX_VALUE) return 0;
+        return HEADER + keySize + valueSize;
+    }
+
+    private static byte[] encode(String key, String value, long seq) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + keyBytes.length + valueBytes.length);
+        record.putInt(0).putLong(seq).putInt(keyBytes.length).putInt(valueBytes.length).put(keyBytes).put(valueBytes);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * @return the record starting at a buffer index, or null if its CRC does not match
+     */
+    private static Record decode(ByteBuffer buffer, int at, long offset) {
+        int size = recordSize(buffer, at);
+        if (size == 0 || buffer.limit() - at < size) return null;
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), at + 4, size - 4);
+        if (buffer.getInt(at) != (int) crc.getValue()) return null;
+        int keySize = buffer.getInt(at + 12);
+        String key = new String(buffer.array(), at + HEADER, keySize, StandardCharsets.UTF_8);
+        String value = new String(buffer.array(), at + HEADER + keySize, size - HEADER - keySize, StandardCharsets.UTF_8);
+        return new Record(key, value, buffer.getLong(at + 4), offset, size);
+    }
+
+    @Override
+    public String stats() {
+        long size = 0;
+        long dead = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.size.get();
+            dead += segment.dead.get();
+        }
+        return "keys=" + index.size()
+                + " segments=" + segments.size()
+                + " logBytes=" + size
+                + " deadBytes=" + dead
+                + " compactions=" + compactions.get()
+                + " reclaimedBytes=" + reclaimedBytes.get()
+                + " rebuildMillis=" + rebuildMillis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Let a running compaction and the queued hint files finish, periodic checks stop
+        background.shutdown();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+    }
+}
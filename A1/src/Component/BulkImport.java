@@ -0,0 +1,354 @@
+package Component;
+
+import API.ConsistentHashRing;
+import API.RequestBatcher;
+import API.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Imports short/long URL pairs streamed in one request body, one pair per line,
+ * either as CSV ("short,long") or as NDJSON ({"short": "...", "long": "..."}).
+ * Valid pairs are grouped by the databases owning them and written as MWRITE
+ * batches, a few in flight at a time, so the body is read no faster than the
+ * databases store it and never held in memory. A pair counts as imported once
+ * enough of its replicas stored it for the write consistency level. A line
+ * longer than node.importMaxLine characters stops the import there.
+ */
+class BulkImport {
+
+    static final int MAX_LINE = Integer.getInteger("node.importMaxLine", 65536); // Longest line of an import, in characters
+
+    private final RequestBatcher.Sender sender;
+    private final Supplier<ConsistentHashRing> ring;
+    private final int replicas;
+    private final Consistency level;
+    private final int batchSize;
+    private final int maxErrors;
+    private final Consumer<String> onWritten;
+    private final Semaphore inFlight;
+    private final int permits;
+
+    private final HashMap<Address, Batch> open = new HashMap<>();
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private long lines = 0;
+    private long invalid = 0;
+    private long errorCount = 0;
+    private final ArrayList<Error> errors = new ArrayList<>();
+    private boolean stopped = false;
+
+    private Reader reader;
+    private final char[] chars = new char[8192];
+    private int position = 0;
+    private int limit = 0;
+    private boolean afterCarriageReturn = false;
+
+    /**
+     * A pair on its way to its replicas.
+     */
+    private static class Pending {
+        final long line;
+        final String shortURL;
+        final int owners;
+        final int required;
+        final AtomicInteger acks = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        Pending(long line, String shortURL, int owners, int required) {
+            this.line = line;
+            this.shortURL = shortURL;
+            this.owners = owners;
+            this.required = required;
+        }
+    }
+
+    /**
+     * Pairs waiting to be written to one database.
+     */
+    private static class Batch {
+        final ArrayList<String> fields = new ArrayList<>();
+        final ArrayList<Pending> pairs = new ArrayList<>();
+    }
+
+    private record Error(long line, String message) {}
+
+    /**
+     * Creates an import of one request body.
+     *
+     * @param sender     sends MWRITE requests to a database
+     * @param ring       current placement of the databases
+     * @param replicas   databases holding each pair
+     * @param level      replicas that must store a pair for it to count as imported
+     * @param batchSize  most pairs in one MWRITE
+     * @param inFlight   most MWRITE requests waiting for a reply at once
+     * @param maxErrors  most errors listed in the report; all are counted
+     * @param onWritten  called with each short URL once it is imported or has failed,
+     *                   as a failed pair may still have been stored by some replicas
+     */
+    BulkImport(RequestBatcher.Sender sender, Supplier<ConsistentHashRing> ring, int replicas, Consistency level,
+               int batchSize, int inFlight, int maxErrors, Consumer<String> onWritten) {
+        this.sender = sender;
+        this.ring = ring;
+        this.replicas = replicas;
+        this.level = level;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxErrors = maxErrors;
+        this.onWritten = onWritten;
+        this.permits = Math.max(1, inFlight);
+        this.inFlight = new Semaphore(permits);
+    }
+
+    /**
+     * Reads a body to its end, imports its pairs and waits for the last writes.
+     * A line that is too long stops the reading, and the pairs before it are
+     * still written.
+     *
+     * @param body request body
+     * @return report with the counts, the throughput and the errors by line
+     * @throws IOException if the body cannot be read
+     */
+    String run(InputStream body) throws IOException {
+        long start = System.nanoTime();
+        reader = new InputStreamReader(body, StandardCharsets.UTF_8);
+        String line;
+        while ((line = readLine()) != null) {
+            lines++;
+            if (line.length() > MAX_LINE) {
+                error(lines, "longer than " + MAX_LINE + " characters, import stopped");
+                stopped = true;
+                break;
+            }
+            line = line.strip();
+            // Skip blank lines and a CSV header
+            if (line.isEmpty() || (lines == 1 && line.equalsIgnoreCase("short,long"))) continue;
+            String[] pair = line.startsWith("{") ? parseJson(line) : parseCsv(line);
+            if (pair == null) {
+                reject(lines, "cannot parse line");
+            } else if (!Utils.isValidShort(pair[0])) {
+                reject(lines, "invalid short URL");
+            } else if (!Utils.isValidLong(pair[1])) {
+                reject(lines, "invalid long URL");
+            } else {
+                add(lines, pair[0], pair[1].strip());
+            }
+        }
+        for (Map.Entry<Address, Batch> entry : open.entrySet()) {
+            send(entry.getKey(), entry.getValue());
+        }
+        open.clear();
+        inFlight.acquireUninterruptibly(permits);
+        inFlight.release(permits);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        StringBuilder report = new StringBuilder();
+        report.append(stopped ? "stopped at line " : "lines=").append(lines)
+                .append(" imported=").append(imported.get())
+                .append(" invalid=").append(invalid)
+                .append(" failed=").append(failed.get())
+                .append(" seconds=").append(String.format("%.3f", seconds))
+                .append(" pairsPerSecond=").append(Math.round(imported.get() / Math.max(seconds, 1e-3)))
+                .append('\n');
+        synchronized (errors) {
+            errors.sort(Comparator.comparingLong(Error::line));
+            for (Error error : errors) {
+                report.append("line ").append(error.line()).append(": ").append(error.message()).append('\n');
+            }
+            if (errorCount > errors.size()) {
+                report.append("(").append(errorCount - errors.size()).append(" more errors not listed)\n");
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * @return true if the import stopped at a line that was too long, leaving the rest of the body unread
+     */
+    boolean stopped() {
+        return stopped;
+    }
+
+    /**
+     * Reads the next line without its line break. A line longer than MAX_LINE
+     * is cut short after MAX_LINE + 1 characters, so it is never held in full.
+     *
+     * @return the line, or null at the end of the body
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = null;
+        while (true) {
+            if (position == limit) {
+                limit = reader.read(chars, 0, chars.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return line != null ? line.toString() : null;
+                }
+            }
+            if (afterCarriageReturn) {
+                afterCarriageReturn = false;
+                if (chars[position] == '\n') position++;
+                continue;
+            }
+            if (line == null) line = new StringBuilder();
+            int from = position;
+            while (position < limit && chars[position] != '\n' && chars[position] != '\r') position++;
+            line.append(chars, from, Math.min(position - from, MAX_LINE + 1 - line.length()));
+            if (position < limit) {
+                afterCarriageReturn = chars[position++] == '\r';
+                return line.toString();
+            }
+            if (line.length() > MAX_LINE) return line.toString();
+        }
+    }
+
+    private void add(long line, String shortURL, String longURL) {
+        ArrayList<Address> owners = ring.get().replicas(shortURL, replicas);
+        if (owners.isEmpty()) {
+            error(line, "no database available");
+            failed.incrementAndGet();
+            return;
+        }
+        Pending pending = new Pending(line, shortURL, owners.size(), level.required(owners.size()));
+        for (Address owner : owners) {
+            Batch batch = open.computeIfAbsent(owner, k -> new Batch());
+            batch.fields.add(shortURL);
+            batch.fields.add(longURL);
+            batch.pairs.add(pending);
+            if (batch.pairs.size() >= batchSize) {
+                open.remove(owner);
+                send(owner, batch);
+            }
+        }
+    }
+
+    /**
+     * Sends one batch, waiting first if too many are in flight.
+     */
+    private void send(Address owner, Batch batch) {
+        inFlight.acquireUninterruptibly();
+        try {
+            sender.send(owner.host(), owner.port(), "MWRITE", batch.fields.toArray(new String[0]))
+                    .whenComplete((reply, e) -> {
+                        boolean stored = e == null && reply.length > 0 && "Stored".equals(reply[0]);
+                        for (Pending pending : batch.pairs) {
+                            if (stored) {
+                                if (pending.acks.incrementAndGet() == pending.required) {
+                                    imported.incrementAndGet();
+                                    onWritten.accept(pending.shortURL);
+                                }
+                            } else if (pending.failures.incrementAndGet() == pending.owners - pending.required + 1) {
+                                failed.incrementAndGet();
+                                error(pending.line, "write failed on too many replicas");
+                                onWritten.accept(pending.shortURL);
+                            }
+                        }
+                        inFlight.release();
+                    });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private void reject(long line, String message) {
+        invalid++;
+        error(line, message);
+    }
+
+    private void error(long line, String message) {
+        synchronized (errors) {
+            errorCount++;
+            if (errors.size() < maxErrors) errors.add(new Error(line, message));
+        }
+    }
+
+    /**
+     * Splits a CSV line at its first comma, removing quotes around either value.
+     */
+    private static String[] parseCsv(String line) {
+        int comma = line.indexOf(',');
+        if (comma < 0) return null;
+        return new String[]{unquote(line.substring(0, comma).strip()), unquote(line.substring(comma + 1).strip())};
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1).replace("\"\"", "\"");
+        }
+        return value;
+    }
+
+    /**
+     * Reads the "short" and "long" string members of a flat JSON object.
+     */
+    private static String[] parseJson(String line) {
+        String shortURL = jsonString(line, "short");
+        String longURL = jsonString(line, "long");
+        return shortURL == null || longURL == null ? null : new String[]{shortURL, longURL};
+    }
+
+    private static String jsonString(String line, String name) {
+        String key = "\"" + name + "\"";
+        int at = line.indexOf(key);
+        while (at >= 0) {
+            int i = at + key.length();
+            while (i < line.length() && Character.isWhitespace(line.charAt(i))) i++;
+            if (i < line.length() && line.charAt(i) == ':') {
+                i++;
+                while (i < line.length() && Character.isWhitespace(line.charAt(i))) i++;
+                return i < line.length() && line.charAt(i) == '"' ? unescape(line, i + 1) : null;
+            }
+            at = line.indexOf(key, at + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a JSON string starting after its opening quote.
+     */
+    private static String unescape(String line, int from) {
+        StringBuilder value = new StringBuilder();
+        for (int i = from; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') return value.toString();
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (++i >= line.length()) return null;
+            char escaped = line.charAt(i);
+            switch (escaped) {
+                case 'n': value.append('\n'); break;
+                case 't': value.append('\t'); break;
+                case 'r': value.append('\r'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u':
+                    if (i + 4 >= line.length()) return null;
+                    try {
+                        value.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    i += 4;
+                    break;
+                default: value.append(escaped);
+            }
+        }
+        return null;
+    }
+}
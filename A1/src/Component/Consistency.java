@@ -0,0 +1,40 @@
+package Component;
+
+/**
+ * How many replicas must acknowledge a write before the client is answered.
+ */
+public enum Consistency {
+    ONE, QUORUM, ALL;
+
+    /**
+     * Returns the number of acknowledgements needed.
+     *
+     * @param replicas number of replicas the write is sent to
+     * @return acknowledgements required, at least one
+     */
+    public int required(int replicas) {
+        switch (this) {
+            case ONE:
+                return Math.min(1, replicas);
+            case QUORUM:
+                return replicas / 2 + 1;
+            default:
+                return replicas;
+        }
+    }
+
+    /**
+     * Parses a consistency level, ignoring case.
+     *
+     * @param name     level name, may be null
+     * @param fallback level used when the name is missing or unknown
+     * @return parsed level
+     */
+    public static Consistency parse(String name, Consistency fallback) {
+        if (name == null) return fallback;
+        for (Consistency level : values()) {
+            if (level.name().equalsIgnoreCase(name)) return level;
+        }
+        return fallback;
+    }
+}
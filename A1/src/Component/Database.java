@@ -1,83 +1,155 @@
 package Component;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.File;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+import API.BinaryProtocol;
+import API.BloomFilter;
+import API.ConsistentHashRing;
 import API.Link;
+import API.Utils;
 
 /**
  * A multithreaded database for storing urls
  */
 public class Database extends Link {
+
+	static final int THREADS = Integer.getInteger("db.threads", 64);           // Handler threads, one per open connection, unless on virtual threads
+	static final int IDLE_TIMEOUT = Integer.getInteger("db.idleTimeout", 60000); // Close connections idle for this many milliseconds
 	
-	public Database() {
-		super(7777);
-	}
+	static final int BATCH_SIZE = Integer.getInteger("db.batchSize", 64);                // Most writes committed in one transaction
+	static final int BATCH_DELAY = Integer.getInteger("db.batchDelayMicros", 200);     // Longest a write waits for others to join its batch
+	static final int WRITE_TIMEOUT = Integer.getInteger("db.writeTimeout", 10000);        // Milliseconds a write waits for its group commit before it is reported failed
+	static final int SCAN_ROWS = Integer.getInteger("db.scanRows", 4096);                // Most rows one SCAN request examines
+	static final int WORKERS = Integer.getInteger("db.workers", 64);                     // Threads running binary protocol requests, unless on virtual threads
+	static final int MAX_IN_FLIGHT = Integer.getInteger("db.maxInFlight", 256);          // Binary requests per connection being worked on at once
+	static final int MAX_KEYS = Integer.getInteger("db.maxBatchKeys", 1024);             // Most keys in one MREAD or pairs in one MWRITE
+	static final int SNAPSHOT_CHUNK = Integer.getInteger("db.snapshotChunk", 4096);       // Most pairs in one SNAPSHOT frame, and in one restore transaction
+	static final long BLOOM_KEYS = Long.getLong("db.bloomKeys", 1000000);                 // Keys the Bloom filter is first sized for, it doubles when full
+	static final double BLOOM_FPP = Double.parseDouble(System.getProperty("db.bloomFpp", "0.01")); // False positive rate of a full Bloom filter
+	static final String ENGINE = System.getProperty("db.engine", "sqlite");               // "sqlite" or "bitcask"
+	static final String DB_PATH = "/virtual/" + System.getProperty("user.name") + "/url.db";
+	static final String LOG_PATH = System.getProperty("db.logDir", "/virtual/" + System.getProperty("user.name") + "/url.log"); // Directory of the bitcask engine's log
+
+	private final StorageEngine engine;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final LinkedBlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<>();
+	private final ExecutorService workers = createExecutor(EXECUTOR, WORKERS);
+
+	// Group commit metrics
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong batchedWrites = new AtomicLong();
+	private final AtomicLong maxBatch = new AtomicLong();
+	private final AtomicLong commitNanos = new AtomicLong();
+	private final AtomicLong maxCommitNanos = new AtomicLong();
+
+	// Connections holding a handler thread, and those turned away because every thread was held
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicLong rejectedConnections = new AtomicLong();
+
+	// Restore progress
+	private final AtomicBoolean restoring = new AtomicBoolean();
+	private final AtomicLong restoredRows = new AtomicLong();
+	private volatile String restoreState = "None";
+
+	// Bloom filter of the stored short URLs, null until first built, and the one being built to replace it
+	private volatile BloomFilter bloom = null;
+	private volatile BloomFilter nextBloom = null;
+	private final AtomicBoolean bloomBuilding = new AtomicBoolean(true);
+
+	/**
+	 * A write waiting in the group commit queue, holding short and long URLs in turn.
+	 * All pairs of one write are committed in the same transaction.
+	 * The future completes once the transaction holding it commits or fails.
+	 * A write that does not replace keeps any value already stored for the key.
+	 */
+	private record PendingWrite(String[] pairs, boolean replace, CompletableFuture<Boolean> done) {}
 	
 	/**
-     * Connect to the local database file
-     * 
-     * If the file does not exist, a new one will be created.
-     * If the file is corrupted, it will be removed and create a new one.
+     * Creates a database and opens its storage engine, chosen by db.engine.
+     * Writes reach the engine only through the group commit thread.
      */
-	private Connection connect() {
-		Connection c = null;
+	public Database() {
+		super(7777, THREADS);
+		StorageEngine e = null;
 		try {
-			// Connect to the existing database or create a new database
-			c = DriverManager.getConnection("jdbc:sqlite:/virtual/" + System.getProperty("user.name") +"/url.db");
-			if(verbose)System.out.println("Connected to database");
-		} catch (Exception e) {
-			// Remove the corrupted database file
-			File DB = new File("/virtual/" + System.getProperty("user.name") +"/url.db"); 
-			DB.delete();
-			try {
-				// Create a new database file
-				c = DriverManager.getConnection("jdbc:sqlite:/virtual/" + System.getProperty("user.name") +"/url.db");
-				// Set up the new table
-				initialize(c);
-				if(verbose)System.out.println("Connected to database");
-			} catch (Exception ex) {
-				System.out.println("Database connect error: " + ex);
-				System.exit(1);
-			}
+			e = StorageEngine.open(ENGINE, ENGINE.equals("bitcask") ? LOG_PATH : DB_PATH);
+		} catch (IOException | IllegalArgumentException ex) {
+			System.out.println("Database connect error: " + ex);
+			System.exit(1);
 		}
-		return c;
+		engine = e;
+
+		Thread builder = new Thread(() -> buildBloom(BLOOM_KEYS), "db-bloom");
+		builder.setDaemon(true);
+		builder.start();
+
+		Thread committer = new Thread(this::commitLoop, "db-committer");
+		committer.setDaemon(true);
+		committer.start();
 	}
 	
 	/**
-     * Set up a url table for the new database file
-     *
+     * Turns away a connection that would have to wait for a handler thread.
+     * On a thread pool every open connection holds its thread until it is closed
+     * or idles out, so a connection beyond db.threads would sit in the queue
+     * unserved while its client times out. Closing it at once lets the client
+     * fail fast instead. Connections on virtual threads are never turned away.
      */
-	public void initialize(Connection c) {
-		try {
-			Statement table = null;
-			table = c.createStatement();
-			// SQL query send to database
-			String sql = "CREATE TABLE IF NOT EXISTS URL " +
-                    "(shortURL TEXT PRIMARY KEY NOT NULL," +
-                    " longURL TEXT NOT NULL)"; 
-			table.executeUpdate(sql);
-			table.close();
-			c.close();
-		} catch (Exception e) {
-			System.out.println("Create table error: " + e);
+	@Override
+	public Runnable handler(Socket socket) {
+		boolean pooled = executor instanceof ThreadPoolExecutor;
+		if (pooled && connections.incrementAndGet() > THREADS) {
+			connections.decrementAndGet();
+			rejectedConnections.incrementAndGet();
+			System.err.println("Database busy: all " + THREADS + " handler threads hold connections, closing connection");
+			try {
+				socket.close();
+			} catch (IOException e) {
+				System.err.println("Error: " + e.getMessage());
+			}
+			return () -> {};
 		}
-		System.out.println("Table created");
+		return () -> {
+			try {
+				handle(socket);
+			} finally {
+				if (pooled) connections.decrementAndGet();
+			}
+		};
 	}
 
-	
 	/**
-     * Handles upcoming database request for storing and getting URL
+     * Handles upcoming database requests for storing and getting URL.
+     * A connection may carry any number of requests; it is served until the
+     * client closes it or it stays idle for longer than IDLE_TIMEOUT.
+     * Connections opening with the binary preamble are handed to handleBinary,
+     * all others speak the line protocol.
      */
 	@Override
 	public void handle(Socket socket){
@@ -85,42 +157,48 @@ public class Database extends Link {
 		BufferedReader in = null;
 		try {
 			if(verbose)System.out.println("Receive connection");
-			out = new PrintWriter(socket.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			
-			// Read the code and the short URL from the client
-			String code = in.readLine();
-			String shortURL = in.readLine();
-			String longURL = "";
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+			input.mark(1);
+			if (input.read() == (BinaryProtocol.MAGIC & 0xff)) {
+				input.reset();
+				handleBinary(input, socket.getOutputStream());
+				return;
+			}
+			input.reset();
+			out = new PrintWriter(socket.getOutputStream());
+			in = new BufferedReader(new InputStreamReader(input));
 			
-			out.println("DB");
-			// Perform different operations according to code type
-			switch (code) {
-				// Get the long URL from the database with short URL
-				case "READ":
-					out.println(read(shortURL));
-					break;
-				// Store the short and long URL pair to the databse
-				case "WRITE":
-					longURL = in.readLine();
-					write(shortURL, longURL);
-					out.println("Stored");
-					break;
-				// Receive status check from the admin tool
-				case "STATUS":
-					out.println("DBALIVE");
+			String code;
+			while ((code = in.readLine()) != null) {
+				// Read the short URL from the client, and the long URL of a write
+				String shortURL = in.readLine();
+				if (shortURL == null) break;
+				String longURL = code.equals("WRITE") || code.equals("COPY") ? in.readLine() : "";
+
+				// A snapshot takes over the rest of the connection
+				if (code.equals("SNAPSHOT")) {
+					out.println("DB");
+					out.println("SNAPSHOT");
+					out.flush();
+					snapshot(shortURL, socket.getOutputStream());
 					break;
-				// Invalid code received from coordinator
-				default:
-					if(verbose)System.out.println("Invalid code");
+				}
+
+				out.println("DB");
+				out.println(respond(code, shortURL, longURL));
+				out.flush();
 			}
 
+		} catch (SocketTimeoutException e) {
+			if(verbose)System.out.println("Idle connection timed out");
 		} catch (IOException e) {
 			System.err.println("Error : " + e.getMessage());
 		} finally {
 			try {
-				in.close();
-				out.close();
+				if (in != null) in.close();
+				if (out != null) out.close();
 				socket.close();
 			} catch (IOException e) {
 				System.err.println("Error: " + e.getMessage());
@@ -129,72 +207,561 @@ public class Database extends Link {
 			if(verbose)System.out.println("Socket closed");
 		}
 	}
+
+	/**
+     * Serves a connection speaking the binary protocol.
+     * Each request runs on a worker as soon as it arrives and its reply is written
+     * when it is ready, so a slow write does not hold up the reads behind it.
+     * At most MAX_IN_FLIGHT requests per connection are being worked on at once.
+     *
+     * @param input stream from the client, positioned at the preamble
+     * @param output stream to the client
+     */
+	private void handleBinary(InputStream input, OutputStream output) throws IOException {
+		BinaryProtocol.readPreamble(input);
+		DataInputStream in = new DataInputStream(input);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+		Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+		try {
+			BinaryProtocol.Frame request;
+			while ((request = BinaryProtocol.read(in)) != null) {
+				inFlight.acquireUninterruptibly();
+				BinaryProtocol.Frame frame = request;
+				workers.execute(() -> {
+					try {
+						String[] reply = respond(frame.command(), frame.fields());
+						byte type = reply == null ? BinaryProtocol.INVALID : BinaryProtocol.OK;
+						synchronized (out) {
+							BinaryProtocol.write(out, frame.id(), type, reply == null ? new String[]{"Invalid"} : reply);
+							out.flush();
+						}
+					} catch (IOException e) {
+						if(verbose)System.out.println("Reply not sent: " + e.getMessage());
+					} finally {
+						inFlight.release();
+					}
+				});
+			}
+		} finally {
+			// Let the requests already read finish answering before the socket closes
+			inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+		}
+	}
+
+	/**
+     * Runs one request of the binary protocol, whose values are separate fields
+     *
+     * @param command request command, null if unknown
+     * @param fields request values
+     * @return reply values, one per short URL for an MREAD, or null if the request is invalid
+     */
+	private String[] respond(String command, String[] fields) {
+		if (command == null || fields.length == 0) return null;
+		// The protocol can carry a null field, which no command takes as a short or long URL
+		for (String field : fields) {
+			if (field == null) return null;
+		}
+		switch (command) {
+			case "MREAD":
+				return readAll(fields);
+			case "MWRITE":
+				if (fields.length % 2 != 0 || fields.length > 2 * MAX_KEYS) return null;
+				return new String[]{writeAll(fields) ? "Stored" : "Failed"};
+			default:
+				String reply = respond(command, fields[0], fields.length > 1 ? fields[1] : "");
+				return "Invalid".equals(reply) ? null : new String[]{reply};
+		}
+	}
+
+	/**
+     * Runs one request of either protocol
+     *
+     * @param code request code
+     * @param shortURL short URL, or the request of a SCAN
+     * @param longURL long URL of a WRITE or COPY
+     * @return reply, null for a short URL that is not stored
+     */
+	private String respond(String code, String shortURL, String longURL) {
+		// Perform different operations according to code type
+		switch (code) {
+			// Get the long URL from the database with short URL
+			case "READ":
+				return read(shortURL);
+			// Store the short and long URL pair to the databse
+			case "WRITE":
+				return write(shortURL, longURL) ? "Stored" : "Failed";
+			// Store a pair moved by the rebalancer unless a newer value is already here
+			case "COPY":
+				return copy(shortURL, longURL) ? "Stored" : "Failed";
+			// Get the long URLs of space separated short URLs, "null" for those not stored
+			case "MREAD": {
+				String[] values = readAll(shortURL.split(" "));
+				if (values == null) return "Invalid";
+				for (int i = 0; i < values.length; i++) {
+					if (values[i] == null) values[i] = "null";
+				}
+				return String.join(" ", values);
+			}
+			// Store space separated short and long URL pairs in one transaction
+			case "MWRITE": {
+				String[] pairs = shortURL.split(" ");
+				if (pairs.length % 2 != 0 || pairs.length > 2 * MAX_KEYS) return "Invalid";
+				return writeAll(pairs) ? "Stored" : "Failed";
+			}
+			// Stream pairs the rebalancer has to move, the short URL line carries the scan request
+			case "SCAN":
+				return scan(shortURL);
+			// Fill this database from snapshots of others, in the background
+			case "RESTORE":
+				return restore(shortURL);
+			// Receive status check from the admin tool
+			case "STATUS":
+				return "DBALIVE";
+			// Report group commit metrics
+			case "STATS":
+				return stats();
+			// Send a copy of the Bloom filter, folded to at most the number of bits on the short URL line
+			case "BLOOM": {
+				BloomFilter current = bloom;
+				if (current == null) return "Loading";
+				try {
+					return current.encode(Long.parseLong(shortURL.strip()));
+				} catch (NumberFormatException e) {
+					return current.encode(0);
+				}
+			}
+			// Invalid code received from coordinator, reply anyway to keep the stream in step
+			default:
+				if(verbose)System.out.println("Invalid code");
+				return "Invalid";
+		}
+	}
 	
 	/**
      * Store the short and long URL pair to the database
+     * Returns once the group commit holding the write has committed.
      *
      * @param shortURL short URL
      * 		  longURL long URL
+     * @return true if the pair is durably stored
+     */
+	public boolean write(String shortURL, String longURL) {
+		return enqueue(new PendingWrite(new String[]{shortURL, longURL}, true, new CompletableFuture<>()));
+	}
+
+	/**
+     * Store many short and long URL pairs in a single transaction
+     * Returns once the group commit holding them has committed.
+     *
+     * @param pairs short and long URLs in turn
+     * @return true if all pairs are durably stored
      */
-	public void write(String shortURL, String longURL) {
-		Connection c = null;
+	public boolean writeAll(String[] pairs) {
+		if (pairs.length == 0) return true;
+		return enqueue(new PendingWrite(pairs, true, new CompletableFuture<>()));
+	}
+
+	/**
+     * Store a pair only if the short URL is not stored yet.
+     * Used for data moved by the rebalancer, so it never overwrites a newer write.
+     *
+     * @param shortURL short URL
+     * 		  longURL long URL
+     * @return true if the write committed
+     */
+	public boolean copy(String shortURL, String longURL) {
+		return enqueue(new PendingWrite(new String[]{shortURL, longURL}, false, new CompletableFuture<>()));
+	}
+
+	/**
+     * Queue a write for the next group commit and wait for it, for at most
+     * WRITE_TIMEOUT. A write that times out is reported failed, though its
+     * commit may still go through later.
+     */
+	private boolean enqueue(PendingWrite pending) {
+		writeQueue.add(pending);
 		try {
-			// Connect to the database
-			c = connect();
-			String sql = """
-				 	pragma journal_mode = WAL;
-					pragma synchronous = normal;
-				""";
-			Statement stmt  = c.createStatement();
-			stmt.executeUpdate(sql);
-			
-			// This query will update the old one if it exists or insert a new one
-			String insertSQL = "REPLACE INTO url(shortURL,longURL) "
-					+ "VALUES (\""+shortURL+"\",\""+longURL+"\");";
-			PreparedStatement pstmt = c.prepareStatement(insertSQL);
-			pstmt.execute();
-			if(verbose)System.out.println("Insert success");
-		} catch (SQLException e) {
-			System.out.println("Database insert error: " + e);
+			return pending.done().get(WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.out.println("Database insert error: " + e.getCause());
+		} catch (TimeoutException e) {
+			System.out.println("Database insert error: no commit within " + WRITE_TIMEOUT + " ms");
+		}
+		return false;
+	}
+
+	/**
+     * Group commit loop, run by a single thread.
+     * Takes the first queued write, then collects more until the batch holds BATCH_SIZE pairs
+     * or BATCH_DELAY microseconds have passed, and commits them together.
+     */
+	private void commitLoop() {
+		ArrayList<PendingWrite> batch = new ArrayList<>(BATCH_SIZE);
+		while (true) {
+			try {
+				batch.add(writeQueue.take());
+				long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(BATCH_DELAY);
+				int rows = batch.get(0).pairs().length / 2;
+				while (rows < BATCH_SIZE) {
+					PendingWrite next = writeQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null) break;
+					batch.add(next);
+					rows += next.pairs().length / 2;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			boolean committed = commit(batch);
+			for (PendingWrite pending : batch) {
+				pending.done().complete(committed);
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+     * Write a batch of pairs in one transaction
+     * Any error from the engine rolls the transaction back, so the commit
+     * thread carries on with the next batch.
+     *
+     * @param batch pending writes
+     * @return true if the transaction committed
+     */
+	private boolean commit(ArrayList<PendingWrite> batch) {
+		long start = System.nanoTime();
+		int rows = 0;
+		for (PendingWrite pending : batch) {
+			rows += pending.pairs().length / 2;
+		}
+		writeLock.lock();
+		try {
+			try {
+				// A replacing write updates the old pair if it exists or inserts a new one
+				for (PendingWrite pending : batch) {
+					engine.put(pending.pairs(), pending.replace());
+				}
+				engine.commit();
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Database insert error: " + e);
+				engine.rollback();
+				return false;
+			}
+			addToBloom(batch);
+			if(verbose)System.out.println(rows + " new URLs stored");
+			return true;
 		} finally {
+			writeLock.unlock();
+			long elapsed = System.nanoTime() - start;
+			batches.incrementAndGet();
+			batchedWrites.addAndGet(rows);
+			maxBatch.accumulateAndGet(rows, Math::max);
+			commitNanos.addAndGet(elapsed);
+			maxCommitNanos.accumulateAndGet(elapsed, Math::max);
+		}
+	}
+
+	/**
+     * Summarize the group commit metrics on one line
+     *
+     * @return batch size and commit latency figures
+     */
+	public String stats() {
+		long n = Math.max(1, batches.get());
+		return "batches=" + batches.get()
+				+ " writes=" + batchedWrites.get()
+				+ " avgBatch=" + String.format("%.2f", (double) batchedWrites.get() / n)
+				+ " maxBatch=" + maxBatch.get()
+				+ " avgCommitMicros=" + commitNanos.get() / n / 1000
+				+ " maxCommitMicros=" + maxCommitNanos.get() / 1000
+				+ " rejectedConnections=" + rejectedConnections.get()
+				+ " restore=" + restoreState
+				+ " restoredRows=" + restoredRows.get()
+				+ " engine=" + ENGINE + (engine.stats().isEmpty() ? "" : " " + engine.stats())
+				+ bloomStats();
+	}
+
+	/**
+     * Summarize the Bloom filter on one line
+     */
+	private String bloomStats() {
+		BloomFilter current = bloom;
+		if (current == null) return " bloom=Loading";
+		return " bloomKeys=" + current.count()
+				+ " bloomCapacity=" + current.capacity()
+				+ " bloomBits=" + current.bits()
+				+ " bloomFpp=" + String.format("%.5f", current.fpp())
+				+ (nextBloom != null ? " bloom=Growing" : "");
+	}
+
+	/**
+     * Add the keys of a committed batch to the Bloom filter, and to the one being
+     * built if any, and start building a larger filter once this one is full
+     */
+	private void addToBloom(ArrayList<PendingWrite> batch) {
+		BloomFilter current = bloom;
+		BloomFilter next = nextBloom;
+		for (PendingWrite pending : batch) {
+			String[] pairs = pending.pairs();
+			for (int i = 0; i + 1 < pairs.length; i += 2) {
+				if (current != null) current.add(pairs[i]);
+				if (next != null) next.add(pairs[i]);
+			}
+		}
+		if (current != null && current.count() > current.capacity() && bloomBuilding.compareAndSet(false, true)) {
+			Thread builder = new Thread(() -> buildBloom(2 * current.count()), "db-bloom");
+			builder.setDaemon(true);
+			builder.start();
+		}
+	}
+
+	/**
+     * Build a Bloom filter of every stored key from a snapshot, then put it in
+     * place of the current one. Commits made while the snapshot is read add their
+     * keys to the new filter too, so none is missed. Runs in the background.
+     *
+     * @param capacity keys to size the filter for
+     */
+	private void buildBloom(long capacity) {
+		try {
+			while (true) {
+				BloomFilter next = new BloomFilter(capacity, BLOOM_FPP);
+				nextBloom = next;
+				long start = System.currentTimeMillis();
+				engine.snapshot((shortURL, longURL) -> next.add(shortURL));
+				if (next.count() <= next.capacity()) {
+					bloom = next;
+					System.out.println("Bloom filter of " + next.count() + " keys built in " + (System.currentTimeMillis() - start) + " ms");
+					return;
+				}
+				// More keys than expected, size for twice as many
+				capacity = 2 * next.count();
+			}
+		} catch (IOException e) {
+			System.out.println("Bloom filter build error: " + e);
+		} finally {
+			nextBloom = null;
+			bloomBuilding.set(false);
+		}
+	}
+
+	/**
+     * Stream a point-in-time copy of the stored pairs.
+     * The request is "." for every pair, or "replicas self target list" for only
+     * the pairs the target owns in the ring of the list and for which this
+     * database (self) is the first other owner, so restoring a target from all
+     * its peers moves each pair once. Lists are host/port pairs as in SCAN.
+     *
+     * The storage engine reads them without holding up writes (see
+     * StorageEngine.snapshot). They are sent as binary protocol frames of up to SNAPSHOT_CHUNK
+     * short and long URLs each, inside one gzip stream, and end with a frame
+     * holding no fields. A frame of type INVALID reports an error instead.
+     *
+     * @param request snapshot request
+     * @param output stream to the client, left open
+     */
+	public void snapshot(String request, OutputStream output) throws IOException {
+		String[] args = request.split(" ");
+		boolean filtered = args.length == 4;
+		int replicas = filtered ? Integer.parseInt(args[0]) : 0;
+		Address self = filtered ? Utils.parseList(args[1], "DB").get(0) : null;
+		Address target = filtered ? Utils.parseList(args[2], "DB").get(0) : null;
+		ConsistentHashRing ring = filtered ? new ConsistentHashRing(Utils.parseList(args[3], "DB")) : null;
+
+		GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(output, 1 << 16), 1 << 16);
+		DataOutputStream out = new DataOutputStream(gzip);
+		ArrayList<String> chunk = new ArrayList<>(2 * SNAPSHOT_CHUNK);
+		int[] frames = {0};
+		long start = System.nanoTime();
+		try {
+			engine.snapshot((shortURL, longURL) -> {
+				if (filtered) {
+					ArrayList<Address> owners = ring.replicas(shortURL, replicas);
+					if (!owners.remove(target) || owners.isEmpty() || !owners.get(0).equals(self)) return;
+				}
+				chunk.add(shortURL);
+				chunk.add(longURL);
+				if (chunk.size() >= 2 * SNAPSHOT_CHUNK) {
+					BinaryProtocol.write(out, ++frames[0], BinaryProtocol.OK, chunk.toArray(new String[0]));
+					chunk.clear();
+				}
+			});
+			if (!chunk.isEmpty()) BinaryProtocol.write(out, ++frames[0], BinaryProtocol.OK, chunk.toArray(new String[0]));
+			BinaryProtocol.write(out, ++frames[0], BinaryProtocol.OK);
+		} catch (IOException e) {
+			System.out.println("Database snapshot error: " + e);
+			BinaryProtocol.write(out, ++frames[0], BinaryProtocol.INVALID, String.valueOf(e.getMessage()));
+		}
+		gzip.finish();
+		out.flush();
+		if(verbose)System.out.println("Snapshot of " + frames[0] + " frames sent in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+     * Start filling this database from snapshots of other databases.
+     * The request is "sources replicas self list": the databases to copy from,
+     * then this database's place in the ring of the list, as sent to SNAPSHOT.
+     * Restored pairs never replace ones already stored, so writes arriving
+     * meanwhile are kept. Progress shows in STATS.
+     *
+     * @param request restore request
+     * @return "Restoring", or "Busy" if a restore is already running
+     */
+	public String restore(String request) {
+		String[] args = request.split(" ");
+		if (args.length != 4) return "Invalid";
+		if (!restoring.compareAndSet(false, true)) return "Busy";
+		ArrayList<Address> sources = Utils.parseList(args[0], "DB");
+		Thread thread = new Thread(() -> {
+			long before = restoredRows.get();
+			long start = System.currentTimeMillis();
+			int failed = 0;
 			try {
-        		if (c != null) c.close();
-				if(verbose)System.out.println("New URL stored");
-    		} catch (SQLException ex) {
-        		System.out.println(ex.getMessage());
-    		}
+				for (Address source : sources) {
+					restoreState = "Copying from " + source.host() + ":" + source.port();
+					String snapshot = args[1] + " " + source.host() + "/" + source.port() + " " + args[2] + " " + args[3];
+					if (!restoreFrom(source, snapshot)) failed++;
+				}
+			} finally {
+				restoreState = (failed == 0 ? "Done" : "Failed from " + failed + " of " + sources.size())
+						+ " (" + (restoredRows.get() - before) + " rows in " + (System.currentTimeMillis() - start) + " ms)";
+				restoring.set(false);
+			}
+		}, "db-restore");
+		thread.setDaemon(true);
+		thread.start();
+		return "Restoring";
+	}
+
+	/**
+     * Copy one database's snapshot into this one.
+     * Each frame is stored as one write of the group commit queue, and the next
+     * frame is read and decompressed while the previous one commits.
+     *
+     * @param source database to copy from
+     * @param request SNAPSHOT request
+     * @return true if the whole snapshot was stored
+     */
+	private boolean restoreFrom(Address source, String request) {
+		CompletableFuture<Boolean> previous = null;
+		try (Socket socket = new Socket(source.host(), source.port())) {
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			OutputStream output = socket.getOutputStream();
+			output.write(("SNAPSHOT\n" + request + "\n").getBytes());
+			output.flush();
+			InputStream input = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+			if (!"DB".equals(readLine(input)) || !"SNAPSHOT".equals(readLine(input))) {
+				System.out.println("Restore error: " + source.host() + ":" + source.port() + " cannot send snapshots");
+				return false;
+			}
+			DataInputStream in = new DataInputStream(new GZIPInputStream(input, 1 << 16));
+			BinaryProtocol.Frame frame;
+			while ((frame = BinaryProtocol.read(in)) != null) {
+				if (frame.type() != BinaryProtocol.OK) {
+					System.out.println("Restore error: " + String.join(" ", frame.fields()));
+					return false;
+				}
+				String[] pairs = frame.fields();
+				if (pairs.length == 0) return previous == null || previous.get();
+				PendingWrite pending = new PendingWrite(pairs, false, new CompletableFuture<>());
+				writeQueue.add(pending);
+				if (previous != null && !previous.get()) return false;
+				previous = pending.done().thenApply(stored -> {
+					if (stored) restoredRows.addAndGet(pairs.length / 2);
+					return stored;
+				});
+			}
+			System.out.println("Restore error: snapshot from " + source.host() + ":" + source.port() + " ended early");
+		} catch (IOException | ExecutionException e) {
+			System.out.println("Restore error: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		return false;
+	}
+	
+	/**
+     * Find stored pairs whose owners change between two ring memberships.
+     * The request is "cursor limit replicas self oldList newList", where the
+     * cursor is the storage engine's scan cursor ("." to start) and empty
+     * lists are written as ".". Only pairs for which this database is the first
+     * surviving old owner are returned, so each moved pair is streamed once.
+     *
+     * @param request scan request
+     * @return the next cursor ("." once the table is exhausted) followed by short/long pairs
+     */
+	public String scan(String request) {
+		String[] args = request.split(" ");
+		if (args.length != 6) return ".";
+		String cursor = args[0].equals(".") ? "" : args[0];
+		int limit = Integer.parseInt(args[1]);
+		int replicas = Integer.parseInt(args[2]);
+		Address self = Utils.parseList(args[3], "DB").get(0);
+		ArrayList<Address> newList = Utils.parseList(args[5].equals(".") ? "" : args[5], "DB");
+		ConsistentHashRing oldRing = new ConsistentHashRing(Utils.parseList(args[4].equals(".") ? "" : args[4], "DB"));
+		ConsistentHashRing newRing = new ConsistentHashRing(newList);
+
+		StringBuilder pairs = new StringBuilder();
+		int[] found = {0};
+		int examined = 0;
+		boolean exhausted = false;
+		try {
+			while (found[0] < limit && examined < SCAN_ROWS && !exhausted) {
+				int page = Math.min(limit, SCAN_ROWS - examined);
+				int[] rows = {0};
+				String next = engine.scan(cursor, page, (shortURL, longURL) -> {
+					rows[0]++;
+					ArrayList<Address> oldOwners = oldRing.replicas(shortURL, replicas);
+					ArrayList<Address> newOwners = newRing.replicas(shortURL, replicas);
+					oldOwners.retainAll(newList);
+					if (!oldOwners.isEmpty() && oldOwners.get(0).equals(self) && !oldOwners.containsAll(newOwners)) {
+						pairs.append(' ').append(shortURL).append(' ').append(longURL);
+						found[0]++;
+					}
+				});
+				examined += rows[0];
+				exhausted = next == null;
+				if (next != null) cursor = next;
+			}
+		} catch (IOException e) {
+			System.out.println("Database scan error: " + e);
+		}
+		return (exhausted || cursor.isEmpty() ? "." : cursor) + pairs;
 	}
 	
 	/**
      * Retrieve the long URL using short URL from the database
      *
      * @param shortURL short URL
+     * @return long URL, or null if the short URL is not stored
      */
 	public String read(String shortURL) {
-		Connection c = null;
-		String sql = "SELECT * FROM url WHERE shortURL = ?";
-		String longURL = "";
+		String longURL = null;
 		try {
-			c = connect();
-			// Prepare SQL select query
-			PreparedStatement pstmt = c.prepareStatement(sql);
-			pstmt.setString(1, shortURL);
-			ResultSet rs = pstmt.executeQuery();
-			// Get the long URL from the query result
-			longURL = rs.getString("longURL");
-		} catch (SQLException e) {
+			longURL = engine.read(shortURL);
+			if(verbose)System.out.println("URL is "+longURL);
+		} catch (IOException e) {
 			System.out.println("Database read error: " + e);
-		} finally {
-			try {
-        		if (c != null) c.close();
-				if(verbose)System.out.println("URL is "+longURL);
-    		} catch (SQLException ex) {
-        		System.out.println(ex.getMessage());
-    		}
 		}
 		return longURL;
 	}
 
-}
+	/**
+     * Retrieve the long URLs of many short URLs
+     *
+     * @param shortURLs short URLs
+     * @return long URLs in the order of the short URLs, null for those not stored,
+     *         or null if there are more than MAX_KEYS short URLs
+     */
+	public String[] readAll(String[] shortURLs) {
+		if (shortURLs.length > MAX_KEYS) return null;
+		try {
+			return engine.readAll(shortURLs);
+		} catch (IOException e) {
+			System.out.println("Database read error: " + e);
+			return new String[shortURLs.length];
+		}
+	}
 
+}
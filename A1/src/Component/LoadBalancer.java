@@ -1,12 +1,15 @@
 package Component;
 
+import API.HttpBody;
+import API.HttpHead;
 import API.Link;
+import API.RequestLine;
 import API.Utils;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A multithreaded load balancer for the URL shortener.
@@ -17,16 +20,23 @@ public class LoadBalancer extends Link {
     static final File ROOT = new File("resources");
     static final String SERVICE_UNAVAILABLE = "unavailable.html";
     static final String REDIRECT = "redirect.html";
+    static final String NOT_FOUND = "404.html";
 
     static final int PORT = 5555;        // Default port number
-    static final int MAX_MSG_LEN = 8192; // Maximum characters per message
-    static final int CLEAN_TIME = 60000; // Interval to clean the cache in milliseconds
+    static final int CLEAN_TIME = Integer.getInteger("lb.cleanInterval", 1000); // Interval to expire cache entries in milliseconds
+    static final String MODE = System.getProperty("lb.mode", "thread");          // "thread" for a thread per connection, "nio" for event loops
+    static final int THREADS = Integer.getInteger("lb.threads", 256);             // Client connection threads in thread mode, unless on virtual threads
+    static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("lb.keepAliveTimeout", 15000); // Milliseconds an idle client connection stays open
+    static final int CONNECT_TRIES = 5;                                           // Nodes to try before giving up on a request
+    static final long MAX_BODY = Long.getLong("lb.maxBodyBytes", 64L << 20);      // Longest request body forwarded, answered 413 above it
+    static final int BUFFERED_BODY = 65536;                                       // Longest request body read ahead so it can be sent again
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
 
     static boolean verbose = false;
 
     LoadBalancerData loadBalancerData;
-    String nodeHost;
-    int nodePort;
+    final UpstreamPool upstreamPool = new UpstreamPool();
 
     /**
      * Creates a load balancer object.
@@ -34,218 +44,428 @@ public class LoadBalancer extends Link {
      * @param data the shared load balancer data
      */
     public LoadBalancer(LoadBalancerData data) {
-        super(PORT);
+        super(PORT, THREADS);
         loadBalancerData = data;
     }
 
     /**
      * Starts threads to clean the cache and listen for connections.
+     * With lb.mode=nio, connections are served by the selector-based proxy instead.
      */
     @Override
     public void start() {
         executor.execute(this::clean);
-        super.start();
+        if (MODE.equals("nio")) {
+            new NioProxy(loadBalancerData, PORT).start();
+        } else {
+            super.start();
+        }
     }
 
     /**
-     * Selects a node to distribute a request to and returns a socket.
-     * Returns null if there are no nodes available.
+     * Forwards a request to a node over a pooled connection and relays the response.
+     * A pooled connection that fails before any response arrives was closed by the
+     * node while idle, so the request is sent again; up to five nodes are tried.
+     * A streamed body is sent on a new connection, and since it is read from the
+     * client as it goes, the request is only tried on another node if it could
+     * not connect.
+     * The time until the response head arrives is reported to the node selection,
+     * and so are connect failures, timeouts and 5xx responses, which can eject the node.
+     * Returns null if no node could be reached.
      *
-     * @return socket to a node
+     * @param request   request head from the client
+     * @param body      request body read ahead, empty if it is streamed
+     * @param stream    request body to stream from the client, or null
+     * @param chunked   true if the streamed body is sent on in chunks
+     * @param clientOut output stream to the client
+     * @param keepAlive true if the client connection stays open after the response
+     * @return head of the node's response, or null
+     * @throws IOException if there is an error relaying the response
      */
-    private Socket selectNode() {
-        Socket node = null;
-        boolean isSelecting = true;
+    private HttpHead forward(HttpHead request, byte[] body, InputStream stream, boolean chunked,
+                             OutputStream clientOut, boolean keepAlive) throws IOException {
+        byte[] head = request.render(true);
         int tries = 0;
-        while (isSelecting && tries < 5) {
-            Address nodeAddress = loadBalancerData.selectNode();
-            if (nodeAddress == null) {
-                isSelecting = false;
+        Address failed = null;
+        while (tries < CONNECT_TRIES) {
+            LoadBalancerData.Selection selection = loadBalancerData.selectNode(failed);
+            if (selection == null) {
                 if (verbose) System.out.println("LB: No nodes are available");
-            } else {
-                nodeHost = nodeAddress.host();
-                nodePort = nodeAddress.port();
-                try {
-                    node = new Socket(nodeHost, nodePort);
-                    isSelecting = false;
-                } catch (IOException e) {
+                return null;
+            }
+            Address node = selection.node();
+            long probe = selection.probe();
+            UpstreamPool.Upstream upstream;
+            HttpHead response;
+            try {
+                upstream = stream == null ? upstreamPool.borrow(node) : upstreamPool.open(node);
+            } catch (IOException e) {
+                tries++;
+                failed = node;
+                loadBalancerData.connectFailed(node, probe);
+                System.err.println("LB error: Could not connect to " + node.host() + ":" + node.port()
+                        + ", sending request to another node");
+                continue;
+            }
+            long sent = System.nanoTime();
+            loadBalancerData.requestStarted(node);
+            try {
+                upstream.out.write(head);
+                if (stream == null) {
+                    upstream.out.write(body);
+                } else {
+                    sendBody(stream, upstream.out, chunked);
+                }
+                upstream.out.flush();
+                String statusLine = readLine(upstream.in);
+                if (statusLine == null) throw new IOException("Connection closed by node");
+                response = HttpHead.read(statusLine, upstream.in, true);
+            } catch (BodyException e) {
+                // The client's fault, not the node's
+                upstream.close();
+                loadBalancerData.requestDropped(node, probe);
+                throw e;
+            } catch (IOException e) {
+                upstream.close();
+                if (upstream.reused && !(e instanceof SocketTimeoutException)) {
+                    loadBalancerData.requestDropped(node, probe);
+                } else {
+                    loadBalancerData.requestFailed(node, probe);
+                    failed = node;
                     tries++;
-                    System.err.println("LB error: Could not connect to " + nodeHost + ":" + nodePort
-                            + ", sending request to another node");
+                    System.err.println("LB error: No response from " + node.host() + ":" + node.port()
+                            + (stream == null ? ", sending request to another node" : ""));
+                }
+                if (stream != null) return null;
+                continue;
+            }
+            if (isHttpServerError(response)) {
+                loadBalancerData.requestFailed(node, probe);
+            } else {
+                loadBalancerData.requestFinished(node, probe, System.nanoTime() - sent);
+            }
+            if (verbose) System.out.println("LB: Sent request to " + node.host() + ":" + node.port());
+
+            try {
+                clientOut.write(response.render(keepAlive && response.framed));
+                if (response.contentLength > 0) {
+                    copy(upstream.in, clientOut, response.contentLength);
+                } else if (!response.framed) {
+                    upstream.in.transferTo(clientOut);
                 }
+            } catch (IOException e) {
+                upstream.close();
+                throw e;
+            }
+            if (response.keepAlive) {
+                upstreamPool.release(upstream);
+            } else {
+                upstream.close();
             }
+            return response;
         }
-        return node;
+        return null;
     }
 
     /**
-     * Passes a request from the client to a node.
-     * Returns the response from the node.
+     * Copies a request body from the client to a node as it arrives, in chunks
+     * again if it came chunked. Stops at lb.maxBodyBytes.
      *
-     * @param client                 socket to the client
-     * @param clientIn               input stream the client's socket
-     * @return                       node's response as a string
-     * @throws IOException           if there is an error trying to read or write data
+     * @throws BodyException if the client body cannot be read or is too long
+     * @throws IOException   if there is an error writing to the node
      */
-    private String passData(Socket client, BufferedReader clientIn) throws IOException {
-        char[] data = new char[MAX_MSG_LEN];
-        int data_length = 0;
-        try (Socket node = selectNode()) {
-            if (node != null) {
-                BufferedWriter clientOut = new BufferedWriter(
-                        new OutputStreamWriter(client.getOutputStream()));
-                BufferedReader nodeIn = new BufferedReader(
-                        new InputStreamReader(node.getInputStream()));
-                BufferedWriter nodeOut = new BufferedWriter(
-                        new OutputStreamWriter(node.getOutputStream()));
-                clientIn.reset();
-                data_length = clientIn.read(data, 0, MAX_MSG_LEN);
-                if (data_length > 0) {
-                    nodeOut.write(data, 0, data_length);
-                    nodeOut.flush();
-                    if (verbose) System.out.println("LB: Sent request to " + nodeHost + ":" + nodePort);
-                }
-                data_length = nodeIn.read(data, 0, MAX_MSG_LEN);
-                if (data_length > 0) {
-                    clientOut.write(data, 0, data_length);
-                    clientOut.flush();
-                }
+    private static void sendBody(InputStream in, OutputStream out, boolean chunked) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        while (true) {
+            int n;
+            try {
+                n = in.read(buffer);
+            } catch (IOException e) {
+                throw new BodyException(e.getMessage(), false);
             }
+            if (n < 0) break;
+            total += n;
+            if (total > MAX_BODY) throw new BodyException("Request body longer than " + MAX_BODY + " bytes", true);
+            if (chunked) out.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(buffer, 0, n);
+            if (chunked) out.write(CRLF);
+        }
+        if (chunked) out.write(LAST_CHUNK);
+    }
+
+    /**
+     * A request body that could not be read from the client, or that is
+     * longer than lb.maxBodyBytes.
+     */
+    private static class BodyException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final boolean tooLarge;
+
+        BodyException(String message, boolean tooLarge) {
+            super(message);
+            this.tooLarge = tooLarge;
+        }
+    }
+
+    /**
+     * Copies exactly the given number of bytes between streams.
+     */
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (length > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n < 0) throw new IOException("Response ended early");
+            out.write(buffer, 0, n);
+            length -= n;
         }
-        return new String(data, 0, data_length);
     }
 
     /**
      * Sends an alive status.
      *
-     * @param socket        socket to the client
+     * @param out          output stream to the client
+     * @throws IOException if there is an error trying to write data
+     */
+    private void sendStatus(OutputStream out) throws IOException {
+        out.write("LB\nLBALIVE\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Sends the load balancer metrics on one line.
+     *
+     * @param out          output stream to the client
      * @throws IOException if there is an error trying to write data
      */
-    private void sendStatus(Socket socket) throws IOException {
-        PrintWriter out = new PrintWriter(socket.getOutputStream());
-        out.println("LB");
-        out.println("LBALIVE");
+    private void sendStats(OutputStream out) throws IOException {
+        String stats = loadBalancerData.stats() + " upstreamIdle=" + upstreamPool.idleCount();
+        out.write(("LB\n" + stats + "\n").getBytes(StandardCharsets.UTF_8));
         out.flush();
     }
 
     /**
      * Sends an HTTP 307 html.
      *
-     * @param socket       socket to the client
+     * @param out          output stream to the client
      * @param longURL      redirect URL
+     * @param keepAlive    true if the connection stays open
      * @throws IOException if there is an error trying to write data
      */
-    private void sendRedirect(Socket socket, String longURL) throws IOException {
+    private void sendRedirect(OutputStream out, String longURL, boolean keepAlive) throws IOException {
         File file = new File(ROOT, REDIRECT);
-        PrintWriter out = new PrintWriter(socket.getOutputStream());
-        BufferedOutputStream dataOut = new BufferedOutputStream(socket.getOutputStream());
-        sendHTML(file,"HTTP/1.1 307 Temporary Redirect", longURL, out, dataOut);
+        writeHTML(out, file, "HTTP/1.1 307 Temporary Redirect", longURL, keepAlive);
+    }
+
+    /**
+     * Sends an HTTP 404 html.
+     *
+     * @param out          output stream to the client
+     * @param keepAlive    true if the connection stays open
+     * @throws IOException if there is an error trying to write data
+     */
+    private void sendNotFound(OutputStream out, boolean keepAlive) throws IOException {
+        File file = new File(ROOT, NOT_FOUND);
+        writeHTML(out, file, "HTTP/1.1 404 File Not Found", null, keepAlive);
     }
 
     /**
-     * Sends an HTTP 504 html.
+     * Sends an HTTP 413 answer to a request whose body is longer than lb.maxBodyBytes.
+     * The connection is closed afterwards, as the rest of the body is not read.
      *
-     * @param socket       socket to the client
+     * @param out          output stream to the client
      * @throws IOException if there is an error trying to write data
      */
-    private void sendUnavailable(Socket socket) throws IOException {
+    static void sendTooLarge(OutputStream out) throws IOException {
+        writeText(out, "HTTP/1.1 413 Payload Too Large", "Request body longer than " + MAX_BODY + " bytes\n", false);
+    }
+
+    /**
+     * Sends an HTTP 503 html.
+     *
+     * @param out          output stream to the client
+     * @param keepAlive    true if the connection stays open
+     * @throws IOException if there is an error trying to write data
+     */
+    private void sendUnavailable(OutputStream out, boolean keepAlive) throws IOException {
         File file = new File(ROOT, SERVICE_UNAVAILABLE);
-        PrintWriter out = new PrintWriter(socket.getOutputStream());
-        BufferedOutputStream dataOut = new BufferedOutputStream(socket.getOutputStream());
-        sendHTML(file, "HTTP/1.1 503 Service Unavailable", out, dataOut);
+        writeHTML(out, file, "HTTP/1.1 503 Service Unavailable", null, keepAlive);
     }
 
     /**
      * Returns true if the status code of the HTTP response is 201 Created,
      * otherwise false.
      *
-     * @param response response HTML
+     * @param response response head
      * @return         true if the status code is 201, otherwise false
      */
-    private boolean isHttpSuccess(String response) {
-        Pattern pattern = Pattern.compile("(?s)^HTTP\\S+\\s+201\\s+Created.*");
-        Matcher matcher = pattern.matcher(response);
-        return matcher.matches();
+    static boolean isHttpSuccess(HttpHead response) {
+        return response.status == 201;
+    }
+
+    /**
+     * Returns true if the status code of the HTTP response is 5xx,
+     * otherwise false.
+     *
+     * @param response response head
+     * @return         true if the node failed the request, otherwise false
+     */
+    static boolean isHttpServerError(HttpHead response) {
+        return response.status >= 500;
+    }
+
+    /**
+     * Returns true if the status code of the HTTP response is 404 Not Found,
+     * otherwise false.
+     *
+     * @param response response head
+     * @return         true if the status code is 404, otherwise false
+     */
+    static boolean isHttpNotFound(HttpHead response) {
+        return response.status == 404;
     }
 
     /**
      * Extracts the redirect URL from the HTTP response.
      * Returns the empty string if there is no redirect URL.
      *
-     * @param response response html
+     * @param response response head
      * @return         redirect URL
      */
-    private String extractLongURL(String response) {
-        Pattern pattern = Pattern.compile("(?s).*Location:\\s+(\\S+).*");
-        Matcher matcher = pattern.matcher(response);
-        if (matcher.matches()) {
-            return matcher.group(1);
-        }
-        return "";
+    static String extractLongURL(HttpHead response) {
+        String location = response.header("Location");
+        return location != null ? location : "";
     }
 
     /**
-     * Handles distributing the client's request (sending/receiving data).
-     * Caches redirects.
+     * Handles distributing the client's requests (sending/receiving data) on a
+     * persistent connection. Requests are answered in order until the client
+     * closes the connection, asks for it to be closed or leaves it idle.
+     * Caches redirects, and for a short time the short URLs that were not found.
      */
     @Override
     public void handle(Socket client) {
         try {
-            BufferedReader clientIn = new BufferedReader(
-                    new InputStreamReader(client.getInputStream()));
-            clientIn.mark(MAX_MSG_LEN);
-            String firstLine = clientIn.readLine();
+            client.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            InputStream clientIn = new BufferedInputStream(client.getInputStream());
+            BufferedOutputStream clientOut = new BufferedOutputStream(client.getOutputStream());
+            RequestLine firstLine = new RequestLine();
+            while (firstLine.read(clientIn)) {
+                if (!respond(firstLine, clientIn, clientOut)) break;
+                // Pipelined requests that already arrived are answered before flushing
+                if (clientIn.available() == 0) clientOut.flush();
+            }
+            clientOut.flush();
+        } catch (SocketTimeoutException e) {
+            // idle keep-alive connection
+        } catch (IOException e) {
+            System.err.println("LB error: " + e.getMessage());
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                System.err.println("LB error: " + e.getMessage());
+            }
+        }
+    }
 
-            if (firstLine != null ) {
-                Pattern putPattern = Pattern.compile("^PUT\\s+/\\?short=(\\S+)&long=(\\S+)\\s+\\S+$");
-                Pattern getPattern = Pattern.compile("^GET\\s+/(\\S+)\\s+\\S+$");
-                Matcher putMatcher = putPattern.matcher(firstLine);
-                Matcher getMatcher = getPattern.matcher(firstLine);
+    /**
+     * Answers one request.
+     *
+     * @param firstLine first line of the request
+     * @param clientIn  input stream of the client, positioned after the first line
+     * @param clientOut output stream to the client
+     * @return true if the connection stays open for another request
+     * @throws IOException if there is an error trying to read or write data
+     */
+    private boolean respond(RequestLine firstLine, InputStream clientIn, OutputStream clientOut) throws IOException {
+        if (firstLine.is("STATUS")) {
+            sendStatus(clientOut);
+            return true;
+        } else if (firstLine.is("STATS")) {
+            sendStats(clientOut);
+            return true;
+        } else if (firstLine.is("UPDATE")) {
+            loadBalancerData.updateNodeList(Utils.parseList(readLine(clientIn), "NODE"));
+            return false;
+        }
 
-                if (firstLine.equals("STATUS")) {
-                    sendStatus(client);
-                } else if (firstLine.equals("UPDATE")) {
-                    loadBalancerData.updateNodeList(Utils.parseList(clientIn.readLine(), "NODE"));
-                } else if (loadBalancerData.getNumNode() == 0) {
-                    sendUnavailable(client);
-                } else if (putMatcher.matches()) { // PUT request
-                    String response = passData(client, clientIn);
-                    if (isHttpSuccess(response)) {
-                        String shortURL = putMatcher.group(1);
-                        String longURL = putMatcher.group(2);
-                        loadBalancerData.storeToCache(shortURL, longURL);
-                        if (verbose) System.out.println("LB: Stored long to cache");
-                    }
-                } else if (getMatcher.matches() && !firstLine.contains("favicon.ico")) { // GET request
-                    String shortURL = getMatcher.group(1);
-                    if (loadBalancerData.isCached(shortURL)) { // Cached
-                        String longURL = loadBalancerData.fetchFromCache(shortURL);
-                        sendRedirect(client, longURL);
-                        if (verbose) System.out.println("LB: Loaded long from cache");
-                    } else { // Not cached
-                        String redirect = passData(client, clientIn);
-                        String longURL = extractLongURL(redirect);
-                        if (!longURL.equals("")) {
-                            loadBalancerData.storeToCache(shortURL, longURL);
-                            if (verbose) System.out.println("LB: Stored long to cache");
-                        }
-                    }
-                } else {
-                    passData(client, clientIn);
+        HttpHead request = HttpHead.read(firstLine.toString(), clientIn, false);
+        if (request.contentLength > MAX_BODY) {
+            sendTooLarge(clientOut);
+            return false;
+        }
+        // A request without a known end is chunked; it and long bodies are streamed to the node
+        boolean chunked = !request.framed;
+        InputStream stream = null;
+        byte[] body = new byte[0];
+        if (chunked || request.contentLength > BUFFERED_BODY) {
+            stream = HttpBody.open(request, clientIn);
+        } else if (request.contentLength > 0) {
+            body = clientIn.readNBytes((int) request.contentLength);
+        }
+        boolean keepAlive = request.keepAlive;
+        // A streamed body that was not forwarded, or not in full, is left unread on the connection
+        boolean localKeepAlive = keepAlive && stream == null;
+
+        HttpHead response;
+        try {
+            if (loadBalancerData.getNumNode() == 0) {
+                sendUnavailable(clientOut, localKeepAlive);
+                return localKeepAlive;
+            } else if (firstLine.isPut()) { // PUT request
+                response = forward(request, body, stream, chunked, clientOut, keepAlive);
+                if (response != null && isHttpSuccess(response)) {
+                    String shortURL = firstLine.shortURL();
+                    String longURL = firstLine.longURL();
+                    loadBalancerData.storeToCache(shortURL, longURL);
+                    if (verbose) System.out.println("LB: Stored long to cache");
+                }
+            } else if (firstLine.isGet() && !firstLine.isFavicon()) { // GET request
+                String shortURL = firstLine.path();
+                String cachedURL = loadBalancerData.fetchFromCache(shortURL);
+                if (cachedURL != null) { // Cached
+                    sendRedirect(clientOut, cachedURL, localKeepAlive);
+                    if (verbose) System.out.println("LB: Loaded long from cache");
+                    return localKeepAlive;
+                }
+                if (loadBalancerData.isCachedMiss(shortURL)) { // Recently not found
+                    sendNotFound(clientOut, localKeepAlive);
+                    if (verbose) System.out.println("LB: Loaded not found from cache");
+                    return localKeepAlive;
                 }
+                // Not cached
+                response = forward(request, body, stream, chunked, clientOut, keepAlive);
+                String longURL = response != null ? extractLongURL(response) : "";
+                if (!longURL.equals("")) {
+                    loadBalancerData.storeToCache(shortURL, longURL);
+                    if (verbose) System.out.println("LB: Stored long to cache");
+                } else if (response != null && isHttpNotFound(response)) {
+                    loadBalancerData.storeMissToCache(shortURL);
+                }
+            } else {
+                response = forward(request, body, stream, chunked, clientOut, keepAlive);
             }
-            client.close();
-        } catch (IOException e) {
-            System.err.println("LB error: " + e.getMessage());
+        } catch (BodyException e) {
+            if (!e.tooLarge) throw e;
+            sendTooLarge(clientOut);
+            return false;
+        }
+        if (response == null) {
+            sendUnavailable(clientOut, localKeepAlive);
+            return localKeepAlive;
         }
+        return keepAlive && response.framed;
     }
 
     /**
-     * Cleans the cache at an interval.
+     * Expires cache entries and keeps the upstream pool warm at an interval.
+     * Each pass only touches entries that came due since the last one.
      */
     public void clean() {
         while (true) {
             loadBalancerData.clean();
+            if (!MODE.equals("nio")) upstreamPool.maintain(loadBalancerData.getRotationList());
             try {
                 Thread.sleep(CLEAN_TIME);
             } catch (InterruptedException e) {
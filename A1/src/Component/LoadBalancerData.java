@@ -1,8 +1,12 @@
 package Component;
 
+import API.OffHeapCache;
+import API.UrlCache;
+
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -10,26 +14,42 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class LoadBalancerData {
 
-    static final int MAX_CACHE_SIZE = 50;
-    static final int CACHE_EXPIRE_TIME = 60;
+    static final int MAX_CACHE_SIZE = Integer.getInteger("lb.cacheEntries", 100000);  // Maximum cached URLs, 0 for no limit
+    static final long MAX_CACHE_BYTES = Long.getLong("lb.cacheBytes", 0L);             // Maximum cache size in bytes, 0 for no limit
+    static final int CACHE_EXPIRE_TIME = Integer.getInteger("lb.cacheTtl", 60);       // Seconds a cached URL stays valid
+    static final long OFF_HEAP_ENTRIES = Long.getLong("lb.offHeapEntries", 0L);       // Off-heap tier size, 0 disables it
+    static final String OFF_HEAP_FILE = System.getProperty("lb.offHeapFile", "");      // File to map the off-heap tier to, empty for direct memory
+    static final boolean CACHE_ADMISSION = Boolean.parseBoolean(System.getProperty("lb.cacheAdmission", "true"));
+    static final int MISS_CACHE_SIZE = Integer.getInteger("lb.missCacheEntries", 10000);   // Short URLs remembered as not found, 0 disables it
+    static final int MISS_CACHE_TTL = Integer.getInteger("lb.missCacheTtlMillis", 2000);  // Milliseconds a not found answer is reused
+    static final String STRATEGY = System.getProperty("lb.strategy", "round-robin");       // How a node is picked for a request, see SelectionStrategy
+    static final int MAX_EJECTED_PERCENT = Integer.getInteger("lb.maxEjectedPercent", 50); // Most nodes out of the rotation at once, in percent
 
-    private ArrayList<Address> nodeList;
-    private int nodeIndex = 0;
-    private final LinkedHashMap<String, String> longCache = new LinkedHashMap<>() {
-        @Override
-        protected boolean removeEldestEntry(final Map.Entry eldest) {
-            return size() > MAX_CACHE_SIZE;
-        }
-    };
-    private final LinkedHashMap<String, Long> timeCache = new LinkedHashMap<>() {
-        @Override
-        protected boolean removeEldestEntry(final Map.Entry eldest) {
-            return size() > MAX_CACHE_SIZE;
-        }
-    };
+    private volatile Nodes nodes;
+    private final SelectionStrategy strategy = SelectionStrategy.of(STRATEGY);
+    private volatile long nextProbe = Long.MAX_VALUE; // earliest time an ejected node may be probed
+    private final UrlCache longCache = new UrlCache(MAX_CACHE_SIZE, MAX_CACHE_BYTES,
+            CACHE_EXPIRE_TIME * 1000L, CACHE_ADMISSION);
+    private final OffHeapCache offHeapCache = createOffHeapCache();
+    private final UrlCache missCache = MISS_CACHE_SIZE > 0
+            ? new UrlCache(MISS_CACHE_SIZE, 0, MISS_CACHE_TTL, false) : null;
 
     private final ReentrantLock nodeLock = new ReentrantLock();
-    private final ReentrantLock cacheLock = new ReentrantLock();
+
+    /**
+     * The node list with the load figures of each node. It is never changed once
+     * published, so requests pick nodes from it without locking.
+     */
+    private record Nodes(NodeLoad[] loads, HashMap<Address, NodeLoad> byAddress) {}
+
+    /**
+     * A node picked for a request. The request that probes an ejected node
+     * carries the probe token, and its outcome is counted with that token.
+     *
+     * @param node  node address
+     * @param probe probe token, 0 if the request is not a probe
+     */
+    public record Selection(Address node, long probe) {}
 
     /**
      * Creates an object that manages the shared data for a load balancer.
@@ -37,76 +57,255 @@ public class LoadBalancerData {
      * @param list list of node addresses
      */
     public LoadBalancerData(ArrayList<Address> list) {
-        nodeList = list;
+        nodes = build(list, new HashMap<>());
     }
 
     /**
      * Replaces the current node list.
+     * Nodes that stay in the list keep their load figures and ejections.
      *
      * @param newNodeList list of node addresses
      */
     public void updateNodeList(ArrayList<Address> newNodeList) {
         nodeLock.lock();
         try {
-            nodeList = newNodeList;
-            nodeIndex = 0;
+            nodes = build(newNodeList, nodes.byAddress());
+            nextProbe = 0;
         } finally {
             nodeLock.unlock();
         }
     }
 
+    private static Nodes build(ArrayList<Address> list, HashMap<Address, NodeLoad> previous) {
+        NodeLoad[] loads = new NodeLoad[list.size()];
+        HashMap<Address, NodeLoad> byAddress = new HashMap<>();
+        for (int i = 0; i < loads.length; i++) {
+            Address address = list.get(i);
+            NodeLoad load = previous.get(address);
+            loads[i] = load != null ? load : new NodeLoad(address);
+            byAddress.put(address, loads[i]);
+        }
+        return new Nodes(loads, byAddress);
+    }
+
     /**
      * Returns the number of nodes in the node list.
      *
      * @return number of nodes
      */
     int getNumNode() {
-        int size;
-        nodeLock.lock();
-        try {
-            size = nodeList.size();
-        } finally {
-            nodeLock.unlock();
+        return nodes.loads().length;
+    }
+
+    /**
+     * Returns a copy of the node list.
+     *
+     * @return list of node addresses
+     */
+    ArrayList<Address> getNodeList() {
+        ArrayList<Address> list = new ArrayList<>();
+        for (NodeLoad load : nodes.loads()) {
+            list.add(load.address);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the nodes in the rotation, leaving out those that are ejected.
+     *
+     * @return list of node addresses
+     */
+    ArrayList<Address> getRotationList() {
+        ArrayList<Address> list = new ArrayList<>();
+        for (NodeLoad load : nodes.loads()) {
+            if (!load.ejected()) list.add(load.address);
         }
-        return size;
+        return list;
     }
 
     /**
-     * Selects a node to distribute a request to.
+     * Selects a node to distribute a request to. Ejected nodes are not probed.
      * Returns null if there are no nodes available.
-     * Load balancing method: round-robin
+     * Load balancing method: lb.strategy
      *
      * @return socket address of the selected node
      */
     public Address selectNode() {
-        Address nodeAddress = null;
+        NodeLoad[] loads = nodes.loads();
+        if (loads.length == 0) return null;
+        int index = strategy.select(loads, null);
+        return loads[index < 0 ? ThreadLocalRandom.current().nextInt(loads.length) : index].address;
+    }
+
+    /**
+     * Selects a node to send a request to again after a node failed it.
+     * An ejected node whose ejection is over gets the request as its probe.
+     * Otherwise ejected nodes are passed over, and so is the failed node
+     * unless it is the only one left.
+     * Returns null if there are no nodes available.
+     *
+     * @param failed node that failed the request; may be null
+     * @return       selected node, to report the request's outcome with
+     */
+    public Selection selectNode(Address failed) {
+        NodeLoad[] loads = nodes.loads();
+        if (loads.length == 0) return null;
+        if (System.currentTimeMillis() >= nextProbe) {
+            Selection probe = probe(failed);
+            if (probe != null) return probe;
+        }
+        int index = strategy.select(loads, failed);
+        if (index < 0 && failed != null) index = strategy.select(loads, null);
+        if (index < 0) index = ThreadLocalRandom.current().nextInt(loads.length);
+        return new Selection(loads[index].address, 0);
+    }
+
+    /**
+     * Claims the probe of an ejected node that is due for one, if another
+     * thread is not already looking.
+     */
+    private Selection probe(Address failed) {
+        if (!nodeLock.tryLock()) return null;
+        try {
+            long now = System.currentTimeMillis();
+            Selection probe = null;
+            long next = Long.MAX_VALUE;
+            for (NodeLoad load : nodes.loads()) {
+                long token = probe == null && !load.address.equals(failed) ? load.tryProbe(now) : 0;
+                if (token != 0) {
+                    probe = new Selection(load.address, token);
+                    if (LoadBalancer.verbose) System.out.println("LB: Probing " + load.address.host() + ":" + load.address.port());
+                } else {
+                    next = Math.min(next, load.probeDue());
+                }
+            }
+            nextProbe = next;
+            return probe;
+        } finally {
+            nodeLock.unlock();
+        }
+    }
+
+    /**
+     * Counts a request sent to a node, to be matched by {@link #requestFinished},
+     * {@link #requestFailed} or {@link #requestDropped}.
+     *
+     * @param node node address
+     */
+    public void requestStarted(Address node) {
+        NodeLoad load = nodes.byAddress().get(node);
+        if (load != null) load.started();
+    }
+
+    /**
+     * Counts a request that a node answered. Puts an ejected node back
+     * into the rotation if the request was its probe.
+     *
+     * @param node  node address
+     * @param probe probe token of the request, 0 if it is not a probe
+     * @param nanos time until the response head arrived in nanoseconds
+     */
+    public void requestFinished(Address node, long probe, long nanos) {
+        NodeLoad load = nodes.byAddress().get(node);
+        if (load == null || !load.finished(nanos, probe)) return;
         nodeLock.lock();
         try {
-            if (nodeList.size() != 0) {
-                nodeAddress = nodeList.get(nodeIndex);
-                nodeIndex = (nodeIndex + 1) % nodeList.size();
+            if (load.ejected() && load.isProbe(probe)) {
+                load.readmit(System.currentTimeMillis());
+                System.out.println("LB: " + node.host() + ":" + node.port() + " is back in the rotation");
             }
         } finally {
             nodeLock.unlock();
         }
-        return nodeAddress;
     }
 
     /**
-     * Returns whether the given short URL is cached or not.
+     * Counts a request that timed out, lost its connection or got a server
+     * error from a node, ejecting the node once it fails too often in a row.
      *
-     * @param shortURL short URL
-     * @return         true if the short URL is cached
+     * @param node  node address
+     * @param probe probe token of the request, 0 if it is not a probe
      */
-    public boolean isCached(String shortURL) {
-        boolean b;
-        cacheLock.lock();
+    public void requestFailed(Address node, long probe) {
+        NodeLoad load = nodes.byAddress().get(node);
+        if (load != null && load.failed(true, probe)) eject(load);
+    }
+
+    /**
+     * Counts a request that ended without telling anything about the node,
+     * such as one on a pooled connection the node had closed while idle.
+     *
+     * @param node  node address
+     * @param probe probe token of the request, 0 if it is not a probe
+     */
+    public void requestDropped(Address node, long probe) {
+        NodeLoad load = nodes.byAddress().get(node);
+        if (load != null && load.dropped(true, probe)) nextProbe = 0;
+    }
+
+    /**
+     * Counts a failed attempt to connect to a node.
+     *
+     * @param node  node address
+     * @param probe probe token of the request, 0 if it is not a probe
+     */
+    public void connectFailed(Address node, long probe) {
+        NodeLoad load = nodes.byAddress().get(node);
+        if (load != null && load.failed(false, probe)) eject(load);
+    }
+
+    /**
+     * Gives up a probe that was never sent, such as one whose client left while
+     * the connection to the node was being opened, so another one is due.
+     * A token whose outcome was already counted is ignored.
+     *
+     * @param node  node address
+     * @param probe probe token, 0 if the request was not a probe
+     */
+    public void probeAbandoned(Address node, long probe) {
+        NodeLoad load = nodes.byAddress().get(node);
+        if (load != null && load.dropped(false, probe)) nextProbe = 0;
+    }
+
+    /**
+     * Ejects a node, unless that would leave more than lb.maxEjectedPercent
+     * of the nodes out of the rotation.
+     */
+    private void eject(NodeLoad load) {
+        nodeLock.lock();
         try {
-            b = longCache.containsKey(shortURL);
+            NodeLoad[] loads = nodes.loads();
+            if (!load.ejected()) {
+                int ejected = 0;
+                for (NodeLoad other : loads) {
+                    if (other.ejected()) ejected++;
+                }
+                if ((ejected + 1) * 100 > loads.length * MAX_EJECTED_PERCENT) return;
+            }
+            long now = System.currentTimeMillis();
+            long until = load.eject(now);
+            nextProbe = Math.min(nextProbe, until);
+            System.err.println("LB error: " + load.address.host() + ":" + load.address.port()
+                    + " keeps failing, ejected for " + (until - now) + " ms");
         } finally {
-            cacheLock.unlock();
+            nodeLock.unlock();
+        }
+    }
+
+    /**
+     * Creates the optional off-heap cache tier.
+     * Returns null if it is disabled or cannot be set up.
+     *
+     * @return off-heap cache, or null
+     */
+    private static OffHeapCache createOffHeapCache() {
+        if (OFF_HEAP_ENTRIES <= 0) return null;
+        try {
+            return new OffHeapCache(OFF_HEAP_ENTRIES, CACHE_EXPIRE_TIME * 1000L, OFF_HEAP_FILE);
+        } catch (IOException e) {
+            System.err.println("LB error: Could not set up the off-heap cache: " + e.getMessage());
+            return null;
         }
-        return b;
     }
 
     /**
@@ -116,43 +315,80 @@ public class LoadBalancerData {
      * @param longURL  long URL
      */
     public void storeToCache(String shortURL, String longURL) {
-        cacheLock.lock();
-        try {
-            longCache.put(shortURL, longURL);
-            timeCache.put(shortURL, System.nanoTime());
-        } finally {
-            cacheLock.unlock();
-        }
+        longCache.put(shortURL, longURL);
+        if (offHeapCache != null) offHeapCache.put(shortURL, longURL);
+        if (missCache != null) missCache.invalidate(shortURL);
+    }
+
+    /**
+     * Remembers that the given short URL was not found, for a short time.
+     *
+     * @param shortURL short URL
+     */
+    public void storeMissToCache(String shortURL) {
+        if (missCache != null) missCache.put(shortURL, "");
+    }
+
+    /**
+     * Returns true if the given short URL was recently not found.
+     * Should be asked only after {@link #fetchFromCache} found nothing.
+     *
+     * @param shortURL short URL
+     * @return         true if a recent lookup of the short URL was not found
+     */
+    public boolean isCachedMiss(String shortURL) {
+        return missCache != null && missCache.get(shortURL) != null;
     }
 
     /**
      * Returns the long URL corresponding to the given short URL.
+     * Looks in the on-heap cache first, then in the off-heap tier, promoting
+     * hits from the off-heap tier with the expiry they already had, so a URL is
+     * never served for longer than lb.cacheTtl after it was cached. Returns null if the short URL is not cached
+     * or its entry has expired.
      *
      * @param shortURL short URL
-     * @return         long URL
+     * @return         long URL, or null
      */
     public String fetchFromCache(String shortURL) {
-        String s;
-        cacheLock.lock();
-        try {
-            s = longCache.get(shortURL);
-        } finally {
-            cacheLock.unlock();
+        String longURL = longCache.get(shortURL);
+        if (longURL == null && offHeapCache != null) {
+            OffHeapCache.Cached cached = offHeapCache.lookup(shortURL);
+            if (cached != null) {
+                longURL = cached.value();
+                long left = cached.expiresAt() - System.currentTimeMillis();
+                if (left > 0) longCache.put(shortURL, longURL, left);
+            }
         }
-        return s;
+        return longURL;
     }
 
     /**
      * Removes expired entries in the cache.
      */
     public void clean() {
-        cacheLock.lock();
-        try {
-            longCache.entrySet().removeIf(
-                    e -> (System.nanoTime() - timeCache.get(e.getKey())) > CACHE_EXPIRE_TIME
-            );
-        } finally {
-            cacheLock.unlock();
+        longCache.cleanUp();
+        if (missCache != null) missCache.cleanUp();
+    }
+
+    /**
+     * Summarizes the cache counters on one line.
+     *
+     * @return cache size, hits, misses and evictions, the not found answers served from cache
+     *         and the load of each node
+     */
+    public String stats() {
+        return "cache: " + longCache.stats()
+                + (offHeapCache != null ? " offHeap: " + offHeapCache.stats() : "")
+                + (missCache != null ? " missCache: " + missCache.stats() : "")
+                + " strategy=" + STRATEGY + nodeStats();
+    }
+
+    private String nodeStats() {
+        StringBuilder stats = new StringBuilder();
+        for (NodeLoad load : nodes.loads()) {
+            stats.append(" node: ").append(load.stats());
         }
+        return stats.toString();
     }
 }
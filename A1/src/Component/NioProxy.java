@@ -0,0 +1,812 @@
+package Component;
+
+import API.HttpHead;
+import API.Link;
+import API.RequestLine;
+import API.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A non-blocking, selector-driven proxy engine for the load balancer.
+ * One acceptor thread hands connections to a few event loops; each loop owns a
+ * selector, a pool of direct buffers and a pool of idle node connections, and
+ * relays raw bytes between clients and nodes without decoding them, so no
+ * thread is held while a request is in flight.
+ *
+ * Client connections are persistent: each request and response is framed by its
+ * head and Content-Length, pipelined requests wait in the client buffer until
+ * the response before them is delivered, and node connections go back to the
+ * loop's pool once a response has been read completely. Control messages,
+ * cache hits and response heads (to fill the cache) are handled exactly as in
+ * the threaded load balancer.
+ */
+public class NioProxy {
+
+    static final int LOOPS = Integer.getInteger("lb.nioThreads", Runtime.getRuntime().availableProcessors()); // Event loop threads
+    static final int BUFFER_SIZE = Integer.getInteger("lb.nioBufferSize", 16384); // Bytes per direct buffer
+    static final int POOLED_BUFFERS = Integer.getInteger("lb.nioPooledBuffers", 1024); // Idle buffers kept per event loop
+    static final int BACKLOG = 1024;      // Pending connections queued by the kernel
+    static final long SWEEP_INTERVAL = Math.min(1000, UpstreamPool.CONNECT_TIMEOUT); // Milliseconds between sweeps for idle connections and slow connects
+
+    private final LoadBalancerData loadBalancerData;
+    private final int port;
+    private final EventLoop[] loops;
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong exchanges = new AtomicLong();
+    private final AtomicInteger idleUpstreams = new AtomicInteger();
+    private final AtomicLong reusedUpstreams = new AtomicLong();
+
+    /**
+     * Creates a proxy engine.
+     *
+     * @param data the shared load balancer data
+     * @param port port to listen on
+     */
+    public NioProxy(LoadBalancerData data, int port) {
+        this.loadBalancerData = data;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, LOOPS)];
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the calling thread.
+     */
+    public void start() {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                Thread thread = new Thread(loops[i], "lb-loop-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            server.bind(new InetSocketAddress(port), BACKLOG);
+            if (LoadBalancer.verbose) System.out.println("LB: NIO proxy started at " + port);
+            int next = 0;
+            while (true) {
+                SocketChannel client = server.accept();
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            System.err.println("LB error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Summarizes the proxy counters on one line.
+     *
+     * @return open client connections, handled requests and upstream pool figures
+     */
+    public String stats() {
+        return "nio: loops=" + loops.length + " open=" + open.get() + " requests=" + exchanges.get()
+                + " upstreamIdle=" + idleUpstreams.get() + " upstreamReused=" + reusedUpstreams.get();
+    }
+
+    /**
+     * A selector thread with its own pools of direct buffers and idle node connections.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+        private final HashMap<Address, ArrayDeque<Idle>> idle = new HashMap<>();
+        private long lastSweep = System.currentTimeMillis();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Hands an accepted connection to this loop.
+         */
+        void register(SocketChannel client) {
+            accepted.add(client);
+            selector.wakeup();
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = buffers.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        void release(ByteBuffer buffer) {
+            if (buffer == null || buffers.size() >= POOLED_BUFFERS) return;
+            buffer.clear();
+            buffers.push(buffer);
+        }
+
+        /**
+         * Takes the most recently parked connection to a node, or returns null.
+         */
+        Idle borrow(Address node) {
+            ArrayDeque<Idle> deque = idle.get(node);
+            Idle upstream;
+            while (deque != null && (upstream = deque.pollFirst()) != null) {
+                idleUpstreams.decrementAndGet();
+                if (upstream.key.isValid()) return upstream;
+            }
+            return null;
+        }
+
+        /**
+         * Keeps a node connection whose last response was read completely.
+         * It stays registered for reads so a close by the node is noticed at once.
+         */
+        void park(Address node, SocketChannel channel, SelectionKey key) {
+            ArrayDeque<Idle> deque = idle.computeIfAbsent(node, k -> new ArrayDeque<>());
+            if (deque.size() >= UpstreamPool.MAX_IDLE) {
+                closeQuietly(channel);
+                return;
+            }
+            Idle upstream = new Idle(node, channel, key, System.currentTimeMillis());
+            key.attach(upstream);
+            key.interestOps(SelectionKey.OP_READ);
+            deque.offerFirst(upstream);
+            idleUpstreams.incrementAndGet();
+        }
+
+        void discard(Idle upstream) {
+            ArrayDeque<Idle> deque = idle.get(upstream.node);
+            if (deque != null && deque.remove(upstream)) idleUpstreams.decrementAndGet();
+            closeQuietly(upstream.channel);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(SWEEP_INTERVAL);
+                    SocketChannel client;
+                    while ((client = accepted.poll()) != null) {
+                        try {
+                            client.configureBlocking(false);
+                            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                            Exchange exchange = new Exchange(this, client);
+                            exchange.clientKey = client.register(selector, SelectionKey.OP_READ, exchange);
+                            open.incrementAndGet();
+                        } catch (IOException e) {
+                            client.close();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.attachment() instanceof Exchange exchange) {
+                            exchange.handle(key);
+                        } else if (key.attachment() instanceof Idle upstream) {
+                            // An idle node connection only becomes readable when the node closes it
+                            discard(upstream);
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= SWEEP_INTERVAL) {
+                        sweep(now);
+                        lastSweep = now;
+                    }
+                } catch (IOException e) {
+                    System.err.println("LB error: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Closes client connections idle past the keep-alive timeout, stalled
+         * exchanges and node connections idle past the upstream idle timeout.
+         */
+        private void sweep(long now) {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof Exchange exchange) {
+                    exchange.expire(now);
+                } else if (key.attachment() instanceof Idle upstream && now - upstream.since >= UpstreamPool.IDLE_TIMEOUT) {
+                    discard(upstream);
+                }
+            }
+        }
+    }
+
+    /**
+     * A node connection parked in a loop's pool.
+     */
+    private record Idle(Address node, SocketChannel channel, SelectionKey key, long since) {}
+
+    private enum Phase { HEAD, CONNECTING, PROXY, LOCAL }
+
+    /**
+     * One client connection and, while a request is forwarded, its node connection.
+     * Pooled buffers are kept in fill mode between events; heads rewritten for the
+     * other hop are held in heap buffers in read mode.
+     */
+    private final class Exchange {
+        private final EventLoop loop;
+        private final SocketChannel client;
+        private final RequestLine firstLine = new RequestLine();
+        private SelectionKey clientKey;
+        private SocketChannel upstream;
+        private SelectionKey upstreamKey;
+        private Address node;
+        private boolean reused = false;
+        private int tries = 0;
+        private long probe = 0;          // probe token if the request probes an ejected node
+        private long sentAt = 0;         // when the request went to the node, 0 once it is answered
+
+        private Phase phase = Phase.HEAD;
+        private ByteBuffer in;           // bytes from the client, including pipelined requests
+        private ByteBuffer out;          // bytes from the node
+        private ByteBuffer upstreamHead; // request head to send to the node
+        private ByteBuffer clientHead;   // response head or local reply to send to the client
+        private byte[] requestHead;
+        private long requestBody = 0;    // body bytes still to forward, -1 until the client closes
+        private long discard = 0;        // body bytes of an answered request still to drop
+        private boolean responseStarted = false;
+        private long responseBody = 0;   // body bytes still to relay, -1 until the node closes
+        private boolean keepAlive = false;
+        private boolean upstreamKeepAlive = false;
+        private boolean clientEof = false;
+        private boolean upstreamEof = false;
+        private boolean upstreamShut = false;
+        private boolean closed = false;
+        private long lastActive = System.currentTimeMillis();
+
+        // Request details used to fill the cache from the response
+        private String putShort;
+        private String putLong;
+        private String getShort;
+
+        Exchange(EventLoop loop, SocketChannel client) {
+            this.loop = loop;
+            this.client = client;
+            this.in = loop.acquire();
+        }
+
+        void handle(SelectionKey key) {
+            if (closed || !key.isValid()) return;
+            lastActive = System.currentTimeMillis();
+            boolean fromUpstream = key == upstreamKey;
+            try {
+                if (fromUpstream) {
+                    if (key.isConnectable()) {
+                        finishConnect();
+                    } else {
+                        if (key.isReadable()) readUpstream();
+                        if (!closed && upstream != null && key.isValid() && key.isWritable()) writeUpstream();
+                    }
+                } else {
+                    if (key.isReadable()) readClient();
+                    if (!closed && key.isValid() && key.isWritable()) writeClient();
+                }
+                if (!closed) advance();
+            } catch (IOException e) {
+                if (LoadBalancer.verbose) System.out.println("LB: Connection dropped: " + e.getMessage());
+                if (!fromUpstream && sentAt != 0) {
+                    // The client left, which says nothing about the node
+                    loadBalancerData.requestDropped(node, probe);
+                    sentAt = 0;
+                }
+                if (fromUpstream && retryable()) {
+                    retry();
+                } else {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Closes the connection if it has been idle between requests, or stalled
+         * on a node, for too long. A connect that takes longer than the connect
+         * timeout is given up for another node.
+         */
+        void expire(long now) {
+            if (!closed && phase == Phase.CONNECTING && now - lastActive >= UpstreamPool.CONNECT_TIMEOUT) {
+                System.err.println("LB error: Timed out connecting to " + node.host() + ":" + node.port()
+                        + ", sending request to another node");
+                loadBalancerData.connectFailed(node, probe);
+                closeUpstream();
+                lastActive = now;
+                try {
+                    connect();
+                    if (!closed) advance();
+                } catch (IOException e) {
+                    close();
+                }
+                return;
+            }
+            long timeout = phase == Phase.HEAD ? LoadBalancer.KEEP_ALIVE_TIMEOUT : UpstreamPool.TIMEOUT;
+            if (!closed && now - lastActive >= timeout) close();
+        }
+
+        private void readClient() throws IOException {
+            if (client.read(in) < 0) clientEof = true;
+            if (phase == Phase.HEAD) parseHead();
+        }
+
+        private void writeClient() throws IOException {
+            if (clientHead != null && clientHead.hasRemaining()) {
+                client.write(clientHead);
+                if (clientHead.hasRemaining()) return;
+            }
+            if (phase == Phase.LOCAL) {
+                // The local reply is out, carry on with the next request or close
+                if (keepAlive && !clientEof) {
+                    reset();
+                    parseHead();
+                } else {
+                    close();
+                }
+            } else if (phase == Phase.PROXY && responseStarted) {
+                long n = writeBounded(client, out, responseBody);
+                if (responseBody > 0) responseBody -= n;
+            }
+        }
+
+        private void readUpstream() throws IOException {
+            if (upstream.read(out) < 0) upstreamEof = true;
+            if (!responseStarted) parseResponse();
+        }
+
+        private void writeUpstream() throws IOException {
+            if (upstreamHead.hasRemaining()) {
+                upstream.write(upstreamHead);
+                if (upstreamHead.hasRemaining()) return;
+            }
+            if (requestBody != 0) {
+                long n = writeBounded(upstream, in, requestBody);
+                if (requestBody > 0) requestBody -= n;
+            }
+        }
+
+        /**
+         * Decides what to do with the next request once its head has arrived.
+         */
+        private void parseHead() throws IOException {
+            if (discard > 0) {
+                discard -= drop(in, (int) Math.min(discard, in.position()));
+                if (discard > 0) {
+                    if (clientEof) close();
+                    return;
+                }
+            }
+            if (in.position() == 0) {
+                if (clientEof) close();
+                return;
+            }
+            int end = lineEnd(in, 0);
+            if (end < 0) {
+                if (in.hasRemaining() && !clientEof) return;
+                // A first line longer than the buffer is passed on as it is
+                passThrough();
+                return;
+            }
+            firstLine.parse(in, 0, end);
+
+            if (firstLine.is("STATUS")) {
+                drop(in, end + 1);
+                local(("LB\nLBALIVE\n").getBytes(StandardCharsets.UTF_8), true);
+                return;
+            } else if (firstLine.is("STATS")) {
+                drop(in, end + 1);
+                local(("LB\n" + loadBalancerData.stats() + " " + stats() + "\n").getBytes(StandardCharsets.UTF_8), true);
+                return;
+            } else if (firstLine.is("UPDATE")) {
+                int second = lineEnd(in, end + 1);
+                if (second < 0 && !clientEof && in.hasRemaining()) return;
+                String list = second < 0 ? line(end + 1, Math.max(end + 1, in.position())) : line(end + 1, second);
+                loadBalancerData.updateNodeList(Utils.parseList(list, "NODE"));
+                close();
+                return;
+            }
+
+            // A bare request line has no headers; otherwise wait for the blank line
+            int headLength = firstLine.isHttp() ? HttpHead.headEnd(in) : end + 1;
+            if (headLength < 0) {
+                if (in.hasRemaining() && !clientEof) return;
+                passThrough();
+                return;
+            }
+            byte[] raw = new byte[headLength];
+            in.get(0, raw);
+            drop(in, headLength);
+            HttpHead request = HttpHead.parse(raw, headLength, false);
+            exchanges.incrementAndGet();
+            long body = request.framed ? Math.max(0, request.contentLength) : -1;
+            keepAlive = request.keepAlive;
+
+            if (request.contentLength > LoadBalancer.MAX_BODY) {
+                ByteArrayOutputStream page = new ByteArrayOutputStream();
+                LoadBalancer.sendTooLarge(page);
+                answer(page.toByteArray(), -1);
+                return;
+            }
+
+            if (loadBalancerData.getNumNode() == 0) {
+                unavailable(body);
+                return;
+            }
+            if (firstLine.isPut()) { // PUT request
+                putShort = firstLine.shortURL();
+                putLong = firstLine.longURL();
+            } else if (firstLine.isGet() && !firstLine.isFavicon()) { // GET request
+                String path = firstLine.path();
+                String cachedURL = loadBalancerData.fetchFromCache(path);
+                if (cachedURL != null) { // Cached
+                    answer(Link.renderHTML(new File(LoadBalancer.ROOT, LoadBalancer.REDIRECT),
+                            "HTTP/1.1 307 Temporary Redirect", cachedURL, keepAlive && body >= 0), body);
+                    if (LoadBalancer.verbose) System.out.println("LB: Loaded long from cache");
+                    return;
+                }
+                if (loadBalancerData.isCachedMiss(path)) { // Recently not found
+                    answer(Link.renderHTML(new File(LoadBalancer.ROOT, LoadBalancer.NOT_FOUND),
+                            "HTTP/1.1 404 File Not Found", null, keepAlive && body >= 0), body);
+                    if (LoadBalancer.verbose) System.out.println("LB: Loaded not found from cache");
+                    return;
+                }
+                getShort = path;
+            }
+            // The node hop stays persistent unless the body can only end with the connection
+            requestHead = request.render(body >= 0);
+            requestBody = body;
+            connect();
+        }
+
+        /**
+         * Relays a request that cannot be framed byte for byte, closing both connections afterwards.
+         */
+        private void passThrough() throws IOException {
+            requestHead = new byte[0];
+            requestBody = -1;
+            keepAlive = false;
+            responseStarted = true;
+            responseBody = -1;
+            upstreamKeepAlive = false;
+            exchanges.incrementAndGet();
+            connect();
+        }
+
+        /**
+         * Reads the node's response head, fills the cache from it and rewrites it for the client.
+         */
+        private void parseResponse() throws IOException {
+            int headLength = HttpHead.headEnd(out);
+            if (headLength < 0) {
+                if (upstreamEof && out.position() == 0) {
+                    if (retryable()) {
+                        retry();
+                    } else {
+                        close();
+                    }
+                } else if (!out.hasRemaining() || upstreamEof) {
+                    // Not a head we can frame, relay the rest as it is
+                    responseStarted = true;
+                    responseBody = -1;
+                    keepAlive = false;
+                    upstreamKeepAlive = false;
+                }
+                return;
+            }
+            byte[] raw = new byte[headLength];
+            out.get(0, raw);
+            drop(out, headLength);
+            HttpHead response = HttpHead.parse(raw, headLength, true);
+            if (LoadBalancer.isHttpServerError(response)) {
+                loadBalancerData.requestFailed(node, probe);
+            } else {
+                loadBalancerData.requestFinished(node, probe, System.nanoTime() - sentAt);
+            }
+            sentAt = 0;
+            responseStarted = true;
+            responseBody = response.contentLength > 0 ? response.contentLength : (response.framed ? 0 : -1);
+            keepAlive = keepAlive && response.framed;
+            upstreamKeepAlive = response.keepAlive;
+            clientHead = ByteBuffer.wrap(response.render(keepAlive));
+            cache(response);
+        }
+
+        private void cache(HttpHead response) {
+            if (putShort != null && LoadBalancer.isHttpSuccess(response)) {
+                loadBalancerData.storeToCache(putShort, putLong);
+                if (LoadBalancer.verbose) System.out.println("LB: Stored long to cache");
+            } else if (getShort != null) {
+                String longURL = LoadBalancer.extractLongURL(response);
+                if (!longURL.equals("")) {
+                    loadBalancerData.storeToCache(getShort, longURL);
+                    if (LoadBalancer.verbose) System.out.println("LB: Stored long to cache");
+                } else if (LoadBalancer.isHttpNotFound(response)) {
+                    loadBalancerData.storeMissToCache(getShort);
+                }
+            }
+        }
+
+        /**
+         * Takes a pooled connection to the next node or opens a non-blocking one,
+         * trying up to five nodes.
+         */
+        private void connect() throws IOException {
+            phase = Phase.CONNECTING;
+            while (tries < LoadBalancer.CONNECT_TRIES) {
+                LoadBalancerData.Selection selection = loadBalancerData.selectNode(tries > 0 || reused ? node : null);
+                if (selection == null) break;
+                node = selection.node();
+                probe = selection.probe();
+                Idle pooled = loop.borrow(node);
+                if (pooled != null) {
+                    upstream = pooled.channel();
+                    upstreamKey = pooled.key();
+                    upstreamKey.attach(this);
+                    reused = true;
+                    reusedUpstreams.incrementAndGet();
+                    connected();
+                    return;
+                }
+                tries++;
+                reused = false;
+                try {
+                    upstream = SocketChannel.open();
+                    upstream.configureBlocking(false);
+                    upstream.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    boolean connected = upstream.connect(new InetSocketAddress(node.host(), node.port()));
+                    upstreamKey = upstream.register(loop.selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+                    if (connected) connected();
+                    return;
+                } catch (IOException e) {
+                    closeUpstream();
+                    loadBalancerData.connectFailed(node, probe);
+                    System.err.println("LB error: Could not connect to " + node.host() + ":" + node.port()
+                            + ", sending request to another node");
+                }
+            }
+            if (LoadBalancer.verbose) System.out.println("LB: No nodes are available");
+            unavailable(requestBody);
+        }
+
+        private void finishConnect() throws IOException {
+            try {
+                upstream.finishConnect();
+            } catch (IOException e) {
+                System.err.println("LB error: Could not connect to " + node.host() + ":" + node.port()
+                        + ", sending request to another node");
+                loadBalancerData.connectFailed(node, probe);
+                closeUpstream();
+                connect();
+                return;
+            }
+            connected();
+        }
+
+        private void connected() {
+            phase = Phase.PROXY;
+            if (out == null) out = loop.acquire();
+            upstreamHead = ByteBuffer.wrap(requestHead);
+            sentAt = System.nanoTime();
+            loadBalancerData.requestStarted(node);
+            if (LoadBalancer.verbose) System.out.println("LB: Sent request to " + node.host() + ":" + node.port());
+        }
+
+        /**
+         * A pooled connection that fails before any response arrives was closed by
+         * the node while idle; the request can be sent again if nothing but its head went out.
+         */
+        private boolean retryable() {
+            return reused && !responseStarted && requestBody == 0 && out != null && out.position() == 0;
+        }
+
+        private void retry() {
+            if (sentAt != 0) {
+                loadBalancerData.requestDropped(node, probe);
+                sentAt = 0;
+            }
+            closeUpstream();
+            upstreamEof = false;
+            try {
+                connect();
+                if (!closed) advance();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Updates interest sets from buffer state and finishes the request once its response is delivered.
+         */
+        private void advance() throws IOException {
+            if (phase == Phase.HEAD) {
+                clientKey.interestOps(clientEof ? 0 : SelectionKey.OP_READ);
+                return;
+            }
+            if (phase == Phase.LOCAL) {
+                clientKey.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (phase == Phase.PROXY) {
+                boolean headSent = clientHead == null || !clientHead.hasRemaining();
+                if (responseStarted && headSent && out.position() == 0
+                        && (responseBody == 0 || (responseBody < 0 && upstreamEof))) {
+                    complete();
+                    return;
+                }
+                if (upstreamEof && responseStarted && responseBody > 0 && out.position() == 0) {
+                    close(); // The node closed in the middle of a response
+                    return;
+                }
+                if (requestBody < 0 && clientEof && in.position() == 0 && !upstreamShut) {
+                    upstream.shutdownOutput();
+                    upstreamShut = true;
+                }
+                int upstreamOps = 0;
+                if (!upstreamEof && out.hasRemaining() && (!responseStarted || responseBody != 0)) upstreamOps |= SelectionKey.OP_READ;
+                if (upstreamHead.hasRemaining() || (requestBody != 0 && in.position() > 0)) upstreamOps |= SelectionKey.OP_WRITE;
+                upstreamKey.interestOps(upstreamOps);
+            }
+            int clientOps = 0;
+            if (!clientEof && requestBody != 0 && in.hasRemaining()) clientOps |= SelectionKey.OP_READ;
+            if (clientHead != null && clientHead.hasRemaining()) clientOps |= SelectionKey.OP_WRITE;
+            if (phase == Phase.PROXY && responseStarted && responseBody != 0 && out.position() > 0) clientOps |= SelectionKey.OP_WRITE;
+            clientKey.interestOps(clientOps);
+        }
+
+        /**
+         * Parks the node connection if it can carry another request and moves on
+         * to the next request from the client, or closes.
+         */
+        private void complete() throws IOException {
+            if (upstreamKeepAlive && responseBody == 0 && requestBody == 0 && !upstreamEof) {
+                loop.park(node, upstream, upstreamKey);
+                upstream = null;
+                upstreamKey = null;
+            } else {
+                closeUpstream();
+            }
+            if (keepAlive && !clientEof && responseBody == 0 && requestBody == 0) {
+                reset();
+                parseHead();
+                if (!closed) advance();
+            } else {
+                close();
+            }
+        }
+
+        /**
+         * Answers the client directly, dropping the request body as it arrives.
+         */
+        private void answer(byte[] response, long body) {
+            phase = Phase.LOCAL;
+            keepAlive = keepAlive && body >= 0;
+            discard = Math.max(0, body);
+            clientHead = ByteBuffer.wrap(response);
+        }
+
+        private void local(byte[] response, boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            answer(response, 0);
+        }
+
+        private void unavailable(long body) throws IOException {
+            closeUpstream();
+            answer(Link.renderHTML(new File(LoadBalancer.ROOT, LoadBalancer.SERVICE_UNAVAILABLE),
+                    "HTTP/1.1 503 Service Unavailable", null, keepAlive && body >= 0), body);
+        }
+
+        /**
+         * Prepares for the next request on the same client connection.
+         */
+        private void reset() {
+            phase = Phase.HEAD;
+            loop.release(out);
+            out = null;
+            upstreamHead = null;
+            clientHead = null;
+            requestHead = null;
+            requestBody = 0;
+            responseStarted = false;
+            responseBody = 0;
+            upstreamKeepAlive = false;
+            upstreamEof = false;
+            upstreamShut = false;
+            reused = false;
+            tries = 0;
+            putShort = null;
+            putLong = null;
+            getShort = null;
+        }
+
+        private String line(int from, int to) {
+            int end = to > from && in.get(to - 1) == '\r' ? to - 1 : to;
+            byte[] bytes = new byte[end - from];
+            in.get(from, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void closeUpstream() {
+            if (sentAt != 0) {
+                // A response relayed without reading its head was answered, anything else failed
+                if (responseStarted) {
+                    loadBalancerData.requestFinished(node, probe, System.nanoTime() - sentAt);
+                } else {
+                    loadBalancerData.requestFailed(node, probe);
+                }
+                sentAt = 0;
+            }
+            if (upstream == null) return;
+            closeQuietly(upstream);
+            upstream = null;
+            upstreamKey = null;
+        }
+
+        private void close() {
+            if (closed) return;
+            closed = true;
+            closeUpstream();
+            // A probe not yet sent, or one whose outcome was counted, which is then ignored
+            if (probe != 0) loadBalancerData.probeAbandoned(node, probe);
+            closeQuietly(client);
+            loop.release(in);
+            loop.release(out);
+            in = null;
+            out = null;
+            open.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes at most the given number of bytes from a buffer in fill mode.
+     *
+     * @param bound maximum bytes to write, or -1 for no limit
+     * @return number of bytes written
+     */
+    private static int writeBounded(SocketChannel channel, ByteBuffer buffer, long bound) throws IOException {
+        buffer.flip();
+        int limit = buffer.limit();
+        if (bound >= 0 && bound < buffer.remaining()) buffer.limit(buffer.position() + (int) bound);
+        int n = channel.write(buffer);
+        buffer.limit(limit);
+        buffer.compact();
+        return n;
+    }
+
+    /**
+     * Removes bytes from the front of a buffer in fill mode.
+     *
+     * @return number of bytes removed
+     */
+    private static int drop(ByteBuffer buffer, int count) {
+        buffer.flip();
+        buffer.position(count);
+        buffer.compact();
+        return count;
+    }
+
+    /**
+     * Returns the index of the first newline at or after a position, or -1.
+     */
+    private static int lineEnd(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.position(); i++) {
+            if (buffer.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("LB error: " + e.getMessage());
+        }
+    }
+}
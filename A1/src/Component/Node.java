@@ -1,14 +1,38 @@
 package Component;
 
+import API.BloomFilter;
+import API.ConnectionPool;
+import API.ConsistentHashRing;
+import API.LatencyTracker;
+import API.HttpBody;
+import API.HttpHead;
 import API.Link;
+import API.MultiplexedClient;
+import API.RequestBatcher;
+import API.RequestLine;
+import API.UrlCache;
 import API.Utils;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A multithreaded URL shortener.
@@ -23,105 +47,94 @@ public class Node extends Link {
     static final String REDIRECT_RECORDED = "redirect_recorded.html";
     static final String REDIRECT = "redirect.html";
     static final String CONFIG = "config";
-    private ArrayList<Address> DBList = new ArrayList<Address>();
+
+    static final int DB_POOL_SIZE = Integer.getInteger("node.dbPoolSize", 8);           // Connections per database
+    static final int DB_IDLE_TIMEOUT = Integer.getInteger("node.dbIdleTimeout", 30000); // Milliseconds before an idle connection is closed
+    static final int DB_TIMEOUT = Integer.getInteger("node.dbTimeout", 2000);           // Connect and read timeout in milliseconds
+    static final String PROTOCOL = System.getProperty("node.protocol", "text");          // "text" or "binary" (pipelined) to the databases
+    static final int DB_CONNECTIONS = Integer.getInteger("node.dbConnections", 2);      // Binary connections per database
+    static final int BATCH_WINDOW = Integer.getInteger("node.batchWindowMicros", 0);    // Window for joining READs/WRITEs into MREAD/MWRITE, 0 disables batching
+    static final int BATCH_SIZE = Integer.getInteger("node.batchSize", 64);             // Most requests in one MREAD or MWRITE
+    static final int IMPORT_BATCH = Integer.getInteger("node.importBatch", 512);        // Pairs per MWRITE during a bulk import
+    static final int IMPORT_IN_FLIGHT = Integer.getInteger("node.importInFlight", 8);   // MWRITEs of one import waiting for a reply at once
+    static final int IMPORT_MAX_ERRORS = Integer.getInteger("node.importMaxErrors", 1000); // Errors listed in an import report
+
+    static final int REPLICAS = ConsistentHashRing.REPLICATION_FACTOR; // Databases holding each key, primary first
+    static final int REPLICA_THREADS = Integer.getInteger("node.replicaThreads", 32);   // Threads issuing replica requests, unless on virtual threads
+    static final String READ_MODE = System.getProperty("node.readMode", "hedged");         // "hedged" or "all"
+    static final double HEDGE_PERCENTILE = Double.parseDouble(System.getProperty("node.hedgePercentile", "95"));
+    static final int HEDGE_MIN_MICROS = Integer.getInteger("node.hedgeMinMicros", 500); // Never hedge sooner than this
+    static final int CACHE_ENTRIES = Integer.getInteger("node.cacheEntries", 100000);   // 0 disables the URL cache
+    static final int CACHE_TTL = Integer.getInteger("node.cacheTtl", 60);               // Seconds a cached URL stays valid
+    static final Consistency WRITE_CONSISTENCY = Consistency.parse(System.getProperty("node.writeConsistency"), Consistency.QUORUM);
+    static final int THREADS = Integer.getInteger("node.threads", 256);                 // Client connection threads, unless on virtual threads
+    static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("node.keepAliveTimeout", 15000); // Milliseconds an idle client connection stays open
+    static final int BLOOM_REFRESH = Integer.getInteger("node.bloomRefreshMillis", 0);  // Milliseconds between pulls of the databases' Bloom filters, 0 disables them
+    static final long BLOOM_MAX_BITS = Long.getLong("node.bloomMaxBits", 0);           // Largest filter copy pulled, folded smaller at a higher false positive rate; 0 for full copies
+
+    private ConsistentHashRing ring = new ConsistentHashRing(new ArrayList<Address>());
+    private ConsistentHashRing previousRing = null;
+    private final ConnectionPool dbPool = new ConnectionPool(DB_POOL_SIZE, DB_IDLE_TIMEOUT, DB_TIMEOUT, DB_TIMEOUT);
+    private final MultiplexedClient dbMux = PROTOCOL.equals("binary")
+            ? new MultiplexedClient(DB_CONNECTIONS, DB_IDLE_TIMEOUT, DB_TIMEOUT, DB_TIMEOUT) : null;
+    private final RequestBatcher batcher = BATCH_WINDOW > 0 ? new RequestBatcher(this::sendBatch, BATCH_SIZE, BATCH_WINDOW) : null;
+    private final ExecutorService replicaExecutor = createExecutor(EXECUTOR, REPLICA_THREADS);
+    private final LatencyTracker readLatency = new LatencyTracker(10000);
+    private final AtomicLong hedgedReads = new AtomicLong();
+    private final UrlCache cache = CACHE_ENTRIES > 0 ? new UrlCache(CACHE_ENTRIES, 0, CACHE_TTL * 1000L, true) : null;
+    private final ConcurrentHashMap<Address, BloomFilter> blooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Address, Set<String>> bloomAdds = new ConcurrentHashMap<>(); // keys saved while a filter copy is pulled
+    private final ReentrantReadWriteLock bloomLock = new ReentrantReadWriteLock(); // shared to add keys, exclusive to swap a copy in
+    private final AtomicLong bloomSkips = new AtomicLong();
+    private final AtomicLong bloomFalsePositives = new AtomicLong();
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "node-maintenance");
+        t.setDaemon(true);
+        return t;
+    });
 
     /**
      * Creates a URL shortener object.
      */
     public Node(){
-        super(8888);
+        super(8888, THREADS);
         try {
             loadNodeConfig(CONFIG);
         } catch (IOException e) {
             System.err.println("Error loading DB Config : " + e.getMessage());
         }
+        if (cache != null) maintenance.scheduleAtFixedRate(cache::cleanUp, 1, 1, TimeUnit.SECONDS);
+        if (BLOOM_REFRESH > 0) maintenance.scheduleWithFixedDelay(this::refreshBlooms, 0, BLOOM_REFRESH, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Handles the client's request (GET/PUT).
+     * Handles the client's requests (GET/PUT) on a persistent connection.
+     * Requests are answered in order until the client closes the connection,
+     * asks for it to be closed, or leaves it idle for the keep-alive timeout.
+     * Pipelined requests that are already buffered are answered before flushing.
      *
      * @param connect client's socket
      */
     @Override
     public void handle(Socket connect) {
-        BufferedReader in = null; PrintWriter out = null; BufferedOutputStream dataOut = null;
         try {
-            in = new BufferedReader(new InputStreamReader(connect.getInputStream()));
-            out = new PrintWriter(connect.getOutputStream());
-            dataOut = new BufferedOutputStream(connect.getOutputStream());
-
-            String input = in.readLine();
-
-            // message from monitor
-            if(input.equals("STATUS")) {
-                out.println("NODE");
-                out.println("NODEALIVE");
-                out.flush();
-            // message from admin
-            }else if(input.equals("UPDATE")){
-                ArrayList<Address> newList= Utils.parseList(in.readLine(),"DB");
-                replaceDBList(newList);
-                out.println("NODE");
-                out.println("Updated");
-                out.flush();
-            // message from client
-            }else{
-                // handle PUT requests
-                Pattern pput = Pattern.compile("^PUT\\s+/\\?short=(\\S+)&long=(\\S+)\\s+\\S+$");
-                Matcher mput = pput.matcher(input);
-                if(mput.matches()){
-                    String shortResource=mput.group(1);
-                    String longResource=mput.group(2);
-                    if(Utils.isValidLong(longResource)&&Utils.isValidShort(shortResource)){
-                        // saved
-                        if(save(shortResource, longResource)){
-                            File file = new File(WEB_ROOT, REDIRECT_RECORDED);
-                            sendHTML(file,"HTTP/1.1 201 Created",out,dataOut);
-                        // failed to save to the target database
-                        }else{
-                            File file = new File(WEB_ROOT, SERVER_ERROR);
-                            sendHTML(file,"HTTP/1.1 500 Internal Server Error",out,dataOut);
-                        }
-                        // save to neighbours
-                        backup(shortResource, longResource);
-                    }else{
-                        // invalid input
-                        File file = new File(WEB_ROOT, BAD_REQUEST);
-                        sendHTML(file,"HTTP/1.1 400 Bad Request",out,dataOut);
-                    }
-                // handle GET requests
-                } else {
-                    Pattern pget = Pattern.compile("^(\\S+)\\s+/(\\S+)\\s+(\\S+)$");
-                    Matcher mget = pget.matcher(input);
-                    // ignore get webicon
-                    if(mget.matches() && !input.contains("favicon.ico")){
-                        String method=mget.group(1);
-                        String shortResource=mget.group(2);
-                        String httpVersion=mget.group(3);
-
-                        String longResource = find(shortResource);
-                        // found
-                        if(longResource!=null&&longResource!=""){
-                            File file = new File(WEB_ROOT, REDIRECT);
-                            sendHTML(file,"HTTP/1.1 307 Temporary Redirect",longResource,out,dataOut);
-                        // not found
-                        } else {
-                            File file = new File(WEB_ROOT, FILE_NOT_FOUND);
-                            sendHTML(file,"HTTP/1.1 404 File Not Found",out,dataOut);
-                        }
-                    }else{
-                        // default web page
-                        File file = new File(WEB_ROOT, DEFAULT_FILE);
-                        sendHTML(file,"HTTP/1.1 200 OK",out,dataOut);
-                    }
-                }
+            connect.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            InputStream in = new BufferedInputStream(connect.getInputStream());
+            BufferedOutputStream dataOut = new BufferedOutputStream(connect.getOutputStream());
+            PrintWriter out = new PrintWriter(dataOut);
+
+            RequestLine request = new RequestLine();
+            while (request.read(in)) {
+                if (!respond(request, in, out, dataOut)) break;
+                if (in.available() == 0) dataOut.flush();
             }
+            dataOut.flush();
+        } catch (SocketTimeoutException e) {
+            // idle keep-alive connection
         } catch (Exception e) {
             System.err.println("Server error "+e.getMessage());
         } finally {
             try {
-                in.close();
-                out.close();
                 connect.close(); // we close socket connection
             } catch (Exception e) {
                 System.err.println("Error closing stream : " + e.getMessage());
@@ -129,83 +142,447 @@ public class Node extends Link {
         }
     }
 
+    /**
+     * Answers one request.
+     *
+     * @param request first line of the request
+     * @param in      client's input, positioned after the first line
+     * @return true if the connection stays open for another request
+     * @throws IOException if there is an error trying to read or write data
+     */
+    private boolean respond(RequestLine request, InputStream in, PrintWriter out, BufferedOutputStream dataOut) throws IOException {
+        // message from monitor
+        if(request.is("STATUS")) {
+            out.println("NODE");
+            out.println("NODEALIVE");
+            out.flush();
+        // request for node metrics
+        }else if(request.is("STATS")) {
+            out.println("NODE");
+            out.println(stats());
+            out.flush();
+        // message from admin
+        }else if(request.is("UPDATE")){
+            ArrayList<Address> newList= Utils.parseList(readLine(in),"DB");
+            replaceDBList(newList);
+            out.println("NODE");
+            out.println("Updated");
+            out.flush();
+        // data is being moved, keep reading from the previous placement until it is done
+        }else if(request.is("HANDOFF")){
+            String previous = readLine(in);
+            replacePreviousList(previous == null || previous.isEmpty() ? null : Utils.parseList(previous, "DB"));
+            out.println("NODE");
+            out.println("Updated");
+            out.flush();
+        // message from client
+        }else{
+            HttpHead head = HttpHead.read(request.toString(), in, false);
+            boolean keepAlive = head.keepAlive;
+
+            // bulk import of pairs streamed in the body
+            if(request.isPost() && request.path().equals("import")){
+                InputStream body = HttpBody.open(head, in);
+                BulkImport bulk = bulkImport();
+                String report = bulk.run(body);
+                System.out.println("Bulk import: " + report.lines().findFirst().orElse(""));
+                if (bulk.stopped()) {
+                    // The rest of the body is left unread, so the connection is not reused
+                    writeText(dataOut, "HTTP/1.1 413 Payload Too Large", report, false);
+                    return false;
+                }
+                body.close();
+                writeText(dataOut, "HTTP/1.1 200 OK", report, keepAlive);
+                return keepAlive;
+            }
+            if (head.contentLength > 0) in.skipNBytes(head.contentLength);
+
+            // handle PUT requests
+            if(request.isPut()){
+                if(request.hasValidLong()&&request.hasValidShort()){
+                    String shortResource=request.shortURL();
+                    String longResource=request.longURL();
+                    Consistency level=Consistency.parse(request.consistency(), WRITE_CONSISTENCY);
+                    // saved
+                    if(save(shortResource, longResource, level)){
+                        File file = new File(WEB_ROOT, REDIRECT_RECORDED);
+                        writeHTML(dataOut,file,"HTTP/1.1 201 Created",null,keepAlive);
+                    // failed to save to the target database
+                    }else{
+                        File file = new File(WEB_ROOT, SERVER_ERROR);
+                        writeHTML(dataOut,file,"HTTP/1.1 500 Internal Server Error",null,keepAlive);
+                    }
+                }else{
+                    // invalid input
+                    File file = new File(WEB_ROOT, BAD_REQUEST);
+                    writeHTML(dataOut,file,"HTTP/1.1 400 Bad Request",null,keepAlive);
+                }
+            // handle GET requests
+            } else {
+                // ignore get webicon
+                if(request.hasPath() && !request.isFavicon()){
+                    String shortResource=request.path();
+
+                    String longResource = find(shortResource);
+                    // found
+                    if(longResource!=null&&longResource!=""){
+                        File file = new File(WEB_ROOT, REDIRECT);
+                        writeHTML(dataOut,file,"HTTP/1.1 307 Temporary Redirect",longResource,keepAlive);
+                    // not found
+                    } else {
+                        File file = new File(WEB_ROOT, FILE_NOT_FOUND);
+                        writeHTML(dataOut,file,"HTTP/1.1 404 File Not Found",null,keepAlive);
+                    }
+                }else{
+                    // default web page
+                    File file = new File(WEB_ROOT, DEFAULT_FILE);
+                    writeHTML(dataOut,file,"HTTP/1.1 200 OK",null,keepAlive);
+                }
+            }
+            return keepAlive;
+        }
+        return true;
+    }
+
     /**
      * Find corrresponding long URL from the designated database nodes.
+     * In hedged mode the primary is asked first; if it has not answered within the
+     * recent read latency percentile, or answers with a miss, the next replica is
+     * asked too, and the first replica that has the key wins. In "all" mode every
+     * replica is asked at once. While a rebalance is in flight, the owners under
+     * the previous placement are asked last. Hot URLs are answered from the
+     * node's cache without asking any database. With Bloom filters pulled, replicas
+     * whose filter rules the key out are not asked, and if every one does, the
+     * miss is answered without asking any database.
      * @param shortURL short URL
      * @return long URL
      */
     private String find(String shortURL){
-        String content = shortURL;
-        ArrayList<Address> list = getDBList();
-
-        int num = list.size();
-        if(num>=1){
-            int id = Utils.hashChecker(shortURL,num);
-            Address address = list.get(id);
-            String res = sendMsg(address.host(), address.port(), "READ",content);
-            if(res=="" ||res.equals("null")){
-                address = list.get(((id+1)>=num)? 0:id+1 );
-                res = sendMsg(address.host(), address.port(), "READ",content);
-                if ((res == "" ||res.equals("null")) && num>3){
-                    address = list.get(((id-1)<0)? num-1:id-1);
-                    res = sendMsg(address.host(), address.port(), "READ",content);
+        if (cache != null) {
+            String cached = cache.get(shortURL);
+            if (cached != null) return cached;
+        }
+        ArrayList<Address> owners = getRing().replicas(shortURL, REPLICAS);
+        ConsistentHashRing previous = getPreviousRing();
+        if (previous != null) {
+            for (Address address : previous.replicas(shortURL, REPLICAS)) {
+                if (!owners.contains(address)) owners.add(address);
+            }
+        }
+        if (owners.isEmpty()) return "";
+        boolean filtered = false;
+        if (BLOOM_REFRESH > 0) {
+            ArrayList<Address> candidates = new ArrayList<>(owners.size());
+            filtered = true;
+            for (Address address : owners) {
+                BloomFilter filter = blooms.get(address);
+                if (filter == null || filter.mightContain(shortURL)) candidates.add(address);
+                if (filter == null) filtered = false;
+            }
+            if (candidates.isEmpty()) {
+                bloomSkips.incrementAndGet();
+                return "";
+            }
+            owners = candidates;
+        }
+
+        LinkedBlockingQueue<String> answers = new LinkedBlockingQueue<>();
+        int sent = 0;
+        int received = 0;
+        if (READ_MODE.equals("all")) {
+            while (sent < owners.size()) read(owners.get(sent++), shortURL, answers);
+        } else {
+            read(owners.get(sent++), shortURL, answers);
+        }
+        try {
+            while (received < sent) {
+                boolean canHedge = sent < owners.size();
+                String res = canHedge
+                        ? answers.poll(hedgeDelay(), TimeUnit.MICROSECONDS)
+                        : answers.poll(4L * DB_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (res == null) {
+                    if (!canHedge) break;
+                    // No answer in time, hedge with the next replica
+                    hedgedReads.incrementAndGet();
+                    read(owners.get(sent++), shortURL, answers);
+                    continue;
+                }
+                received++;
+                if (!res.isEmpty() && !res.equals("null")) {
+                    if (cache != null) cache.put(shortURL, res);
+                    return res;
                 }
+                // A miss, fall back to the next replica straight away
+                if (received == sent && canHedge) read(owners.get(sent++), shortURL, answers);
             }
-            if(res.equals("null"))return "";
-            return res;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        // Every filter let the key through, yet no replica has it
+        if (filtered) bloomFalsePositives.incrementAndGet();
         return "";
+    }
 
+    /**
+     * Pull a copy of the Bloom filter of every database in the current and the
+     * previous placement. A database that does not answer with a filter loses
+     * its copy, so reads fall back to asking it.
+     * The database may have encoded its filter before a write this node just
+     * saved was committed, so the keys saved since the pull was sent are added
+     * to the new copy before it is put in place.
+     */
+    private void refreshBlooms(){
+        HashSet<Address> databases = new HashSet<>(getRing().members());
+        ConsistentHashRing previous = getPreviousRing();
+        if (previous != null) databases.addAll(previous.members());
+        blooms.keySet().retainAll(databases);
+        for (Address address : databases) {
+            Set<String> added = ConcurrentHashMap.newKeySet();
+            bloomAdds.put(address, added);
+            try {
+                String res = request(address, "BLOOM", String.valueOf(BLOOM_MAX_BITS)).get(4L * DB_TIMEOUT, TimeUnit.MILLISECONDS);
+                BloomFilter filter = BloomFilter.decode(res);
+                bloomLock.writeLock().lock();
+                try {
+                    for (String shortURL : added) filter.add(shortURL);
+                    blooms.put(address, filter);
+                } finally {
+                    bloomLock.writeLock().unlock();
+                }
+            } catch (IOException | ExecutionException | TimeoutException e) {
+                blooms.remove(address);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                bloomAdds.remove(address, added);
+            }
+        }
     }
 
     /**
-     * Save a URL key-value pair to the designated database
-     * @param shortURL
-     * @param longURL
-     * @return
+     * Add a short URL to the filter copies of the databases it is written to,
+     * so it is found before the next pull
      */
-    private boolean save(String shortURL, String longURL){
-        String content = shortURL+"\n"+longURL;
-        ArrayList<Address> list = getDBList();
-        Address address =  getDBList().get(Utils.hashChecker(shortURL,list.size()));
-        String res = sendMsg(address.host(), address.port(), "WRITE",content);
-        return res.contains("Stored");
+    private void addToBlooms(String shortURL, ArrayList<Address> replicas){
+        for (Address address : replicas) addToBloom(shortURL, address);
     }
 
     /**
-     * Save a key-value pair replica to designated database neighbours
+     * Add a short URL to the filter copy of one database
+     */
+    private void addToBloom(String shortURL, Address address){
+        bloomLock.readLock().lock();
+        try {
+            Set<String> added = bloomAdds.get(address);
+            if (added != null) added.add(shortURL);
+            BloomFilter filter = blooms.get(address);
+            if (filter != null) filter.add(shortURL);
+        } finally {
+            bloomLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Send a READ to one replica in the background and queue its answer
+     * @param address replica
+     * @param shortURL short URL
+     * @param answers queue receiving the answer, empty if the replica cannot be reached
+     */
+    private void read(Address address, String shortURL, LinkedBlockingQueue<String> answers){
+        long start = System.nanoTime();
+        request(address, "READ", shortURL).thenAccept(res -> {
+            if (!res.isEmpty()) readLatency.record((System.nanoTime() - start) / 1000);
+            answers.add(res);
+        });
+    }
+
+    /**
+     * Send a request to a database. Over the binary protocol it is pipelined on a
+     * shared connection and no thread waits for the reply; over the text protocol
+     * a replica thread holds a pooled connection until the reply arrives.
+     * @param address database
+     * @param code request code
+     * @param fields short URL, and the long URL of a write
+     * @return the reply ("null" for a short URL that is not stored), or the empty string if the database cannot be reached
+     */
+    private CompletableFuture<String> request(Address address, String code, String... fields){
+        if (batcher != null && (code.equals("READ") || code.equals("WRITE"))) {
+            return batcher.submit(address.host(), address.port(), code.equals("READ") ? "MREAD" : "MWRITE", fields)
+                    .thenApply(res -> res == null ? "null" : res)
+                    .exceptionally(e -> {
+                        System.out.println("Cannot Reach out to: " + address.host() + ":" + address.port());
+                        return "";
+                    });
+        }
+        if (dbMux == null) {
+            return CompletableFuture.supplyAsync(
+                    () -> dbPool.sendMsg(address.host(), address.port(), code, String.join("\n", fields)), replicaExecutor);
+        }
+        return dbMux.send(address.host(), address.port(), code, fields)
+                .thenApply(reply -> reply.length > 0 && reply[0] != null ? reply[0] : "null")
+                .exceptionally(e -> {
+                    System.out.println("Cannot Reach out to: " + address.host() + ":" + address.port());
+                    return "";
+                });
+    }
+
+    /**
+     * Send a batch of READs as an MREAD or of WRITEs as an MWRITE to a database
+     * @param command "MREAD" or "MWRITE"
+     * @param fields short URLs, or short and long URLs in turn
+     * @return the long URLs in order ("null" or null for those not stored), or the single MWRITE status
+     */
+    private CompletableFuture<String[]> sendBatch(String host, int port, String command, String[] fields){
+        if (dbMux != null) return dbMux.send(host, port, command, fields);
+        return CompletableFuture.supplyAsync(() -> {
+            String res = dbPool.sendMsg(host, port, command, String.join(" ", fields));
+            if (res.isEmpty() || res.equals("Invalid")) throw new CompletionException(new IOException(command + " failed on " + host + ":" + port));
+            return command.equals("MREAD") ? res.split(" ") : new String[]{res};
+        }, replicaExecutor);
+    }
+
+    /**
+     * Time to wait for a replica before hedging, the recent read latency percentile
+     * @return delay in microseconds
+     */
+    private long hedgeDelay(){
+        long delay = Math.max(HEDGE_MIN_MICROS, readLatency.percentile(HEDGE_PERCENTILE));
+        return Math.min(delay, DB_TIMEOUT * 1000L);
+    }
+
+    /**
+     * Save a URL key-value pair to all of its replicas in parallel.
+     * Returns as soon as enough replicas acknowledged for the consistency level,
+     * or as soon as too many failed to reach it; the other writes carry on.
      * @param shortURL
      * @param longURL
+     * @param level consistency level deciding when the write counts as saved
+     * @return true if enough replicas stored the pair
      */
-    private void backup(String shortURL, String longURL){
-        ArrayList<Address> list = getDBList();
-        int num = list.size();
-        if(num>1){
-            String content = shortURL+"\n"+longURL;
-            int id = Utils.hashChecker(shortURL,num);
-            Address address = list.get(((id+1)>=num)? 0:id+1);
-            sendMsg(address.host(), address.port(), "WRITE",content);
-            if (num>=3) {
-                address = list.get(((id-1)<0)? num-1:id-1);
-                sendMsg(address.host(), address.port(), "WRITE",content);
+    private boolean save(String shortURL, String longURL, Consistency level){
+        ArrayList<Address> replicas = getRing().replicas(shortURL, REPLICAS);
+        if (replicas.isEmpty()) {
+            if (cache != null) cache.invalidate(shortURL);
+            return false;
+        }
+        // Before writing, so a replica that stores the pair is never ruled out by a filter copy
+        if (BLOOM_REFRESH > 0) addToBlooms(shortURL, replicas);
+        int required = level.required(replicas.size());
+        AtomicInteger acks = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        for (Address address : replicas) {
+            request(address, "WRITE", shortURL, longURL).thenAccept(res -> {
+                if (res.contains("Stored")) {
+                    // Again once stored, as a copy pulled while the write was in flight may not have the key
+                    if (BLOOM_REFRESH > 0) addToBloom(shortURL, address);
+                    if (acks.incrementAndGet() >= required) result.complete(true);
+                } else if (failures.incrementAndGet() > replicas.size() - required) {
+                    result.complete(false);
+                }
+            });
+        }
+        boolean saved = false;
+        try {
+            saved = result.get(4L * DB_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            System.err.println("Replica write error: " + e.getMessage());
+        }
+        // A write that did not succeed may still land on some replicas, so the old value is dropped
+        if (cache != null) {
+            if (saved) {
+                cache.put(shortURL, longURL);
+            } else {
+                cache.invalidate(shortURL);
             }
         }
+        return saved;
+    }
+
+    /**
+     * Set up an import of pairs streamed in a request body, MWRITE batches at
+     * a time, to every replica that owns them. Each pair written, imported or
+     * failed, is dropped from the cache, as it may be on some replicas either way
+     * @return import to run on the body
+     */
+    private BulkImport bulkImport() {
+        return new BulkImport(this::sendBatch, this::getRing, REPLICAS, WRITE_CONSISTENCY,
+                IMPORT_BATCH, IMPORT_IN_FLIGHT, IMPORT_MAX_ERRORS, shortURL -> {
+                    if (cache != null) cache.invalidate(shortURL);
+                    if (BLOOM_REFRESH > 0) addToBlooms(shortURL, getRing().replicas(shortURL, REPLICAS));
+                });
+    }
+
+    /**
+     * Summarize the node metrics on one line
+     * @return read latency, hedging and cache figures
+     */
+    private String stats(){
+        return "readP50Micros=" + readLatency.percentile(50)
+                + " readP99Micros=" + readLatency.percentile(99)
+                + " hedgeDelayMicros=" + hedgeDelay()
+                + " hedgedReads=" + hedgedReads.get()
+                + (dbMux != null ? " dbInFlight=" + dbMux.inFlight() : "")
+                + (batcher != null ? " batcher: " + batcher.stats() : "")
+                + (cache != null ? " cache: " + cache.stats() : "")
+                + (BLOOM_REFRESH > 0 ? " bloom: " + bloomStats() : "");
+    }
+
+    /**
+     * Summarize the Bloom filter copies: their size, the highest estimated false
+     * positive rate, and the rate seen, the share of reads of absent keys that the
+     * filters let through to the databases
+     */
+    private String bloomStats(){
+        long bits = 0;
+        double fpp = 0;
+        for (BloomFilter filter : blooms.values()) {
+            bits += filter.bits();
+            fpp = Math.max(fpp, filter.fpp());
+        }
+        long skips = bloomSkips.get();
+        long falsePositives = bloomFalsePositives.get();
+        return "copies=" + blooms.size()
+                + " bits=" + bits
+                + " estimatedFpp=" + String.format("%.5f", fpp)
+                + " skipped=" + skips
+                + " falsePositives=" + falsePositives
+                + " observedFpp=" + String.format("%.5f", skips + falsePositives == 0 ? 0.0 : (double) falsePositives / (skips + falsePositives));
     }
 
     /**
-     * Update the internal list of active databases
+     * Update the internal ring of active databases
      * @param newList latest list of active databases
      */
     private synchronized void replaceDBList(ArrayList<Address> newList){
-        this.DBList = newList;
+        this.ring = new ConsistentHashRing(newList);
+    }
+
+    /**
+     * Set the placement data is being moved away from, or null once the move is done
+     * @param previousList databases of the previous placement
+     */
+    private synchronized void replacePreviousList(ArrayList<Address> previousList){
+        this.previousRing = previousList == null ? null : new ConsistentHashRing(previousList);
+    }
+
+    /**
+     * Get the ring data is being moved away from
+     * @return previous ring, or null if no data is being moved
+     */
+    private synchronized ConsistentHashRing getPreviousRing(){
+        return this.previousRing;
     }
 
     /**
-     * Get the current list of active databases
-     * @return current list of active databases
+     * Get the current ring of active databases
+     * @return current ring of active databases
      */
-    private synchronized ArrayList<Address> getDBList(){
-        return this.DBList;
+    private synchronized ConsistentHashRing getRing(){
+        return this.ring;
     }
 
     /**
@@ -215,6 +592,7 @@ public class Node extends Link {
      */
     private void loadNodeConfig(String path) throws IOException {
         String content = Utils.loadConfig(path,2);
+        ArrayList<Address> DBList = new ArrayList<Address>();
         Scanner scanner = new Scanner(content);
         scanner.useDelimiter("[:\n]"); // Split host:port pairs
         while (scanner.hasNext()) {
@@ -222,6 +600,7 @@ public class Node extends Link {
             int p = Integer.parseInt(scanner.next().strip());
             DBList.add(new Address("DB", h, p));
         }
+        replaceDBList(DBList);
     }
 
 }
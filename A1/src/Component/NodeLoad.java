@@ -0,0 +1,213 @@
+package Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load figures the load balancer keeps for one node: the requests it has in
+ * flight and a peak-sensitive moving average of its response time.
+ * A slower response replaces the average at once, a faster one is blended in
+ * with a weight that grows with the time since the last response, and the
+ * average decays towards zero while a node gets no traffic, so a node that was
+ * slow is tried again after a while.
+ *
+ * It also tracks the node's failures in a row. A node with lb.ejectFailures of
+ * them is ejected from the rotation for lb.ejectMillis, doubled for every
+ * ejection that follows too soon after the last one. Once that time is up, a
+ * single probe request is let through: a success puts the node back, a failure
+ * ejects it again. The probe is known by a token that only its own request
+ * reports back with, so the other requests still in flight to the node do not
+ * decide its fate. The ejection methods are called under the load balancer's
+ * node lock.
+ */
+final class NodeLoad {
+
+    static final long DECAY = Long.getLong("lb.ewmaDecayMillis", 10000) * 1_000_000L; // Nanoseconds for the average to forget a response
+    static final double PENALTY = 1e15; // Cost of a node with requests in flight but no response time yet
+    static final int EJECT_FAILURES = Integer.getInteger("lb.ejectFailures", 3);  // Failures in a row that eject a node
+    static final long EJECT_TIME = Long.getLong("lb.ejectMillis", 1000);          // Milliseconds of the first ejection
+    static final long MAX_EJECT_TIME = Long.getLong("lb.maxEjectMillis", 30000);  // Longest ejection in milliseconds
+
+    final Address address;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private volatile double ewma = 0; // nanoseconds
+    private volatile long stamp = System.nanoTime();
+
+    private final AtomicInteger failures = new AtomicInteger(); // in a row
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder ejections = new LongAdder();
+    private final AtomicLong probe = new AtomicLong(); // token of the probe in flight, 0 if none
+    private long probes = 0;                // tokens handed out
+    private volatile long ejectedUntil = 0; // 0 while in the rotation
+    private long admittedAt = 0;
+    private int level = 0;                  // ejections that followed each other too soon
+
+    NodeLoad(Address address) {
+        this.address = address;
+    }
+
+    /**
+     * Counts a request sent to the node.
+     */
+    void started() {
+        inFlight.incrementAndGet();
+        requests.increment();
+    }
+
+    /**
+     * Counts a request that the node answered.
+     *
+     * @param nanos response time in nanoseconds
+     * @param token probe token of the request, 0 if it is not a probe
+     * @return true if it was the probe of an ejected node, which can go back into the rotation
+     */
+    boolean finished(long nanos, long token) {
+        inFlight.decrementAndGet();
+        failures.set(0);
+        observe(nanos);
+        return isProbe(token);
+    }
+
+    /**
+     * Counts a connect failure, a timeout or an error response.
+     *
+     * @param sent  true if the request had been counted as started
+     * @param token probe token of the request, 0 if it is not a probe
+     * @return true if the node should be ejected
+     */
+    boolean failed(boolean sent, long token) {
+        if (sent) inFlight.decrementAndGet();
+        failed.increment();
+        int inRow = failures.incrementAndGet();
+        return isProbe(token) || (ejectedUntil == 0 && inRow >= EJECT_FAILURES);
+    }
+
+    /**
+     * Counts a request that ended without a verdict on the node, such as a
+     * pooled connection the node had closed while idle or a client that left.
+     *
+     * @param sent  true if the request had been counted as started
+     * @param token probe token of the request, 0 if it is not a probe
+     * @return true if it was the probe, so another one is due
+     */
+    boolean dropped(boolean sent, long token) {
+        if (sent) inFlight.decrementAndGet();
+        return token != 0 && probe.compareAndSet(token, 0);
+    }
+
+    /**
+     * @return true if the token is that of the probe in flight
+     */
+    boolean isProbe(long token) {
+        return token != 0 && probe.get() == token;
+    }
+
+    /**
+     * Takes the node out of the rotation.
+     * An ejection soon after the node was put back lasts twice as long as the last one.
+     *
+     * @param now current time in milliseconds
+     * @return time the node may be probed
+     */
+    long eject(long now) {
+        if (ejectedUntil == 0 && now - admittedAt > backOff(level)) level = 0;
+        ejectedUntil = now + backOff(level);
+        level = Math.min(level + 1, 30);
+        probe.set(0);
+        ejections.increment();
+        return ejectedUntil;
+    }
+
+    private static long backOff(int level) {
+        return Math.min(MAX_EJECT_TIME, EJECT_TIME << Math.min(level, 30));
+    }
+
+    /**
+     * Puts the node back into the rotation.
+     *
+     * @param now current time in milliseconds
+     */
+    void readmit(long now) {
+        ejectedUntil = 0;
+        probe.set(0);
+        failures.set(0);
+        admittedAt = now;
+    }
+
+    /**
+     * Claims the probe of an ejected node whose ejection is over.
+     *
+     * @param now current time in milliseconds
+     * @return token the caller sends the probe with, or 0 if no probe is due
+     */
+    long tryProbe(long now) {
+        long until = ejectedUntil;
+        if (until == 0 || now < until) return 0;
+        long token = ++probes;
+        return probe.compareAndSet(0, token) ? token : 0;
+    }
+
+    /**
+     * @return time the node may be probed, or Long.MAX_VALUE if it is in the rotation or being probed
+     */
+    long probeDue() {
+        long until = ejectedUntil;
+        return until != 0 && probe.get() == 0 ? until : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return true if the node is out of the rotation
+     */
+    boolean ejected() {
+        return ejectedUntil != 0;
+    }
+
+    private synchronized void observe(long nanos) {
+        long now = System.nanoTime();
+        double weight = Math.exp(-(double) (now - stamp) / DECAY);
+        double average = ewma;
+        ewma = nanos > average ? nanos : average * weight + nanos * (1 - weight);
+        stamp = now;
+    }
+
+    /**
+     * @return requests sent to the node and not yet answered
+     */
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return response time average in nanoseconds, decayed to now
+     */
+    double ewma() {
+        return ewma * Math.exp(-(double) (System.nanoTime() - stamp) / DECAY);
+    }
+
+    /**
+     * Estimates how long a new request would wait on this node.
+     *
+     * @return response time average scaled by the requests in flight
+     */
+    double cost() {
+        int pending = inFlight.get();
+        double average = ewma();
+        if (average == 0 && pending > 0) return PENALTY + pending;
+        return average * (pending + 1);
+    }
+
+    /**
+     * @return node address and figures on one line
+     */
+    String stats() {
+        return address.host() + ":" + address.port()
+                + " inFlight=" + inFlight.get()
+                + " requests=" + requests.sum()
+                + " ewmaMicros=" + (long) (ewma() / 1000)
+                + " failed=" + failed.sum()
+                + " ejections=" + ejections.sum()
+                + " ejected=" + ejected();
+    }
+}
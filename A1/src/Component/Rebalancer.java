@@ -0,0 +1,206 @@
+package Component;
+
+import API.ConnectionPool;
+import API.ConsistentHashRing;
+import API.Utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Moves stored pairs to their new owners after the database membership changes.
+ * Each surviving database streams, in batches, only the pairs whose replica set
+ * changed; every pair is copied to the databases that newly own it. The task
+ * paces itself to a fixed number of keys per second so foreground traffic keeps
+ * the databases.
+ * A source that stops answering, or a batch with a copy that was not stored,
+ * leaves the pass failed. The task then waits and resumes each unfinished source
+ * from the first batch that was not fully copied, until every pair is in place
+ * or the task is cancelled; only then is the new placement reported finished.
+ */
+public class Rebalancer implements Runnable {
+
+    static final int BATCH_SIZE = Integer.getInteger("rebalance.batchSize", 256);           // Pairs per SCAN request
+    static final int KEYS_PER_SECOND = Integer.getInteger("rebalance.keysPerSecond", 2000); // Copy rate limit
+    static final long RETRY_DELAY = Long.getLong("rebalance.retryMillis", 1000);             // Wait before the first retry of a failed pass, doubled each time
+    static final long MAX_RETRY_DELAY = 60000;                                               // Longest wait between passes
+
+    private final ConnectionPool pool;
+    private final ArrayList<Address> oldList;
+    private final ArrayList<Address> newList;
+    private final Consumer<Rebalancer> onFinish;
+
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean cancelled = false;
+    private volatile String state = "Pending";
+    private volatile int sourcesDone = 0;
+    private volatile int sourcesTotal = 0;
+    private volatile int passes = 0;
+    private volatile long startTime = 0;
+
+    /**
+     * Creates a rebalancing task.
+     *
+     * @param pool     connections to the databases
+     * @param oldList  databases the data is currently placed on
+     * @param newList  databases the data should be placed on
+     * @param onFinish called once every pair has been moved (not when cancelled or still failing)
+     */
+    public Rebalancer(ConnectionPool pool, ArrayList<Address> oldList, ArrayList<Address> newList,
+                      Consumer<Rebalancer> onFinish) {
+        this.pool = pool;
+        this.oldList = new ArrayList<>(oldList);
+        this.newList = new ArrayList<>(newList);
+        this.onFinish = onFinish;
+    }
+
+    /**
+     * Streams moved pairs from every database present in both memberships,
+     * passing over the unfinished sources again until all of them are done.
+     */
+    @Override
+    public void run() {
+        startTime = System.currentTimeMillis();
+        state = "Running";
+        ConsistentHashRing oldRing = new ConsistentHashRing(oldList);
+        ConsistentHashRing newRing = new ConsistentHashRing(newList);
+        String oldString = oldList.isEmpty() ? "." : Utils.formatList(oldList);
+        String newString = newList.isEmpty() ? "." : Utils.formatList(newList);
+
+        // Each unfinished source with the cursor to resume it from
+        LinkedHashMap<Address, String> pending = new LinkedHashMap<>();
+        for (Address source : oldList) {
+            if (newList.contains(source)) pending.put(source, ".");
+        }
+        sourcesTotal = pending.size();
+
+        long delay = RETRY_DELAY;
+        while (!cancelled) {
+            passes++;
+            for (Address source : new ArrayList<>(pending.keySet())) {
+                String resume = scan(source, pending.get(source), oldString, newString, oldRing, newRing);
+                if (cancelled) break;
+                if (resume == null) {
+                    pending.remove(source);
+                    sourcesDone++;
+                } else {
+                    pending.put(source, resume);
+                }
+            }
+            if (cancelled || pending.isEmpty()) break;
+
+            state = "Failed";
+            System.err.println("Rebalance error: " + pending.size() + " sources not fully copied, retrying in " + delay + " ms");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+            delay = Math.min(2 * delay, MAX_RETRY_DELAY);
+            if (!cancelled) state = "Running";
+        }
+
+        state = cancelled ? "Superseded" : "Done";
+        if (!cancelled) onFinish.accept(this);
+    }
+
+    /**
+     * Streams the moved pairs of one source from a cursor on.
+     *
+     * @return null if every pair from the cursor on was copied, otherwise the cursor
+     *         of the first batch that was not fully copied or could not be read
+     */
+    private String scan(Address source, String cursor, String oldString, String newString,
+                        ConsistentHashRing oldRing, ConsistentHashRing newRing) {
+        String self = source.host() + "/" + source.port();
+        String resume = null;
+        do {
+            String request = cursor + " " + BATCH_SIZE + " " + ConsistentHashRing.REPLICATION_FACTOR + " " + self
+                    + " " + oldString + " " + newString;
+            String res = pool.sendMsg(source.host(), source.port(), "SCAN", request);
+            if (res.isEmpty()) {
+                System.err.println("Rebalance error: lost " + source.host() + ":" + source.port());
+                return resume != null ? resume : cursor;
+            }
+            String[] tokens = res.split(" ");
+            boolean copied = true;
+            for (int i = 1; i + 1 < tokens.length && !cancelled; i += 2) {
+                copied &= copy(tokens[i], tokens[i + 1], oldRing, newRing);
+            }
+            if (!copied && resume == null) resume = cursor;
+            cursor = tokens[0];
+        } while (!cursor.equals(".") && !cancelled);
+        return resume;
+    }
+
+    /**
+     * Copies one pair to each database that owns it now but did not before.
+     *
+     * @return true if every copy was stored
+     */
+    private boolean copy(String shortURL, String longURL, ConsistentHashRing oldRing, ConsistentHashRing newRing) {
+        ArrayList<Address> targets = newRing.replicas(shortURL, ConsistentHashRing.REPLICATION_FACTOR);
+        targets.removeAll(oldRing.replicas(shortURL, ConsistentHashRing.REPLICATION_FACTOR));
+        boolean stored = true;
+        for (Address target : targets) {
+            String res = pool.sendMsg(target.host(), target.port(), "COPY", shortURL + "\n" + longURL);
+            if (res.contains("Stored")) {
+                moved.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                stored = false;
+            }
+            throttle();
+        }
+        return stored;
+    }
+
+    /**
+     * Sleeps as long as the copies so far are ahead of the allowed rate.
+     */
+    private void throttle() {
+        long due = startTime + (moved.get() + failed.get()) * 1000 / KEYS_PER_SECOND;
+        long wait = due - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Stops the task at the next pair, for example when the membership changes again.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Returns the membership the data is being moved to.
+     *
+     * @return target database list
+     */
+    public ArrayList<Address> newList() {
+        return new ArrayList<>(newList);
+    }
+
+    /**
+     * Describes the progress of the task for the monitoring page.
+     *
+     * @return one line of progress
+     */
+    public String progress() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        return "Rebalance: " + state
+                + "    Sources: " + sourcesDone + "/" + sourcesTotal
+                + "    Passes: " + passes
+                + "    Moved: " + moved.get()
+                + "    Failed: " + failed.get()
+                + "    Rate: " + (startTime == 0 ? 0 : moved.get() * 1000 / elapsed) + " keys/s";
+    }
+}
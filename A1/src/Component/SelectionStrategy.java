@@ -0,0 +1,122 @@
+package Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How the load balancer picks the node for a request, chosen with lb.strategy.
+ * A strategy reads the node figures without locking and may be called from any
+ * number of threads at once. Ejected nodes are never picked.
+ */
+interface SelectionStrategy {
+
+    /**
+     * Picks a node.
+     *
+     * @param nodes nodes to pick from, at least one
+     * @param avoid node that just failed this request, not to be picked; may be null
+     * @return index of the picked node, or -1 if every node is ejected or avoided
+     */
+    int select(NodeLoad[] nodes, Address avoid);
+
+    /**
+     * Returns the strategy with the given name.
+     *
+     * @param name "round-robin", "least-outstanding", "peak-ewma" or "p2c"
+     * @return the strategy
+     */
+    static SelectionStrategy of(String name) {
+        switch (name) {
+            case "round-robin":
+                return new RoundRobin();
+            case "least-outstanding":
+                return new Cheapest(false);
+            case "peak-ewma":
+                return new Cheapest(true);
+            case "p2c":
+                return new PowerOfTwoChoices();
+            default:
+                throw new IllegalArgumentException("Unknown load balancing strategy " + name);
+        }
+    }
+
+    /**
+     * Returns true if a node may be picked for the request.
+     */
+    static boolean usable(NodeLoad[] nodes, int index, Address avoid) {
+        return !nodes[index].ejected() && !nodes[index].address.equals(avoid);
+    }
+
+    /**
+     * Returns the first node that may be picked, looking from the given index on.
+     */
+    static int firstUsable(NodeLoad[] nodes, int from, Address avoid) {
+        for (int i = 0; i < nodes.length; i++) {
+            int index = (from + i) % nodes.length;
+            if (usable(nodes, index, avoid)) return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Each node in turn.
+     */
+    final class RoundRobin implements SelectionStrategy {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public int select(NodeLoad[] nodes, Address avoid) {
+            return firstUsable(nodes, Math.floorMod(next.getAndIncrement(), nodes.length), avoid);
+        }
+    }
+
+    /**
+     * The node with the fewest requests in flight, or with the lowest peak EWMA
+     * cost. Every node is looked at, starting from a rotating position so that
+     * equally loaded nodes take turns.
+     */
+    final class Cheapest implements SelectionStrategy {
+        private final AtomicInteger start = new AtomicInteger();
+        private final boolean latency;
+
+        Cheapest(boolean latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public int select(NodeLoad[] nodes, Address avoid) {
+            int offset = Math.floorMod(start.getAndIncrement(), nodes.length);
+            int best = -1;
+            double bestCost = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                int index = (offset + i) % nodes.length;
+                if (!usable(nodes, index, avoid)) continue;
+                double cost = latency ? nodes[index].cost() : nodes[index].inFlight();
+                if (best < 0 || cost < bestCost) {
+                    best = index;
+                    bestCost = cost;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * The cheaper by peak EWMA cost of two nodes picked at random, which costs
+     * the same for any number of nodes and avoids sending every request to the
+     * one node that looks best at the moment.
+     */
+    final class PowerOfTwoChoices implements SelectionStrategy {
+        @Override
+        public int select(NodeLoad[] nodes, Address avoid) {
+            if (nodes.length == 1) return firstUsable(nodes, 0, avoid);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(nodes.length);
+            int b = random.nextInt(nodes.length - 1);
+            if (b >= a) b++;
+            if (!usable(nodes, a, avoid)) return firstUsable(nodes, b, avoid);
+            if (!usable(nodes, b, avoid)) return a;
+            return nodes[a].cost() <= nodes[b].cost() ? a : b;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Stores pairs in a SQLite table through JDBC.
+ * SQLite in WAL mode allows one writer alongside any number of readers,
+ * so a single writer connection and a small pool of readers are kept open.
+ */
+class SqliteEngine implements StorageEngine {
+
+    static final int READERS = Integer.getInteger("db.readers", 4); // Read connections kept open alongside the writer
+    static final int IN_CHUNK = 256;                                // Most keys looked up by one IN (...) query
+
+    private final String path;
+    private final Connection writer;
+    private final PreparedStatement writeStmt;
+    private final PreparedStatement copyStmt;
+    private final ArrayBlockingQueue<Reader> readers = new ArrayBlockingQueue<>(READERS);
+
+    /**
+     * A read connection together with its prepared lookup statements.
+     * Multi-key lookups use one IN (...) statement per power of two key count.
+     * Statements are not thread-safe, so a reader is used by one thread at a time.
+     */
+    private record Reader(Connection connection, PreparedStatement readStmt, PreparedStatement scanStmt,
+                          HashMap<Integer, PreparedStatement> multiReadStmts) {}
+
+    /**
+     * Opens the database file and its connections, creating the table if needed.
+     *
+     * @param path database file
+     * @throws IOException if the database cannot be opened
+     */
+    SqliteEngine(String path) throws IOException {
+        this.path = path;
+        try {
+            writer = connect();
+            try (Statement pragma = writer.createStatement()) {
+                pragma.execute("pragma journal_mode = WAL");
+            }
+            writer.setAutoCommit(false);
+            writeStmt = writer.prepareStatement("REPLACE INTO url(shortURL,longURL) VALUES (?,?)");
+            copyStmt = writer.prepareStatement("INSERT OR IGNORE INTO url(shortURL,longURL) VALUES (?,?)");
+            for (int i = 0; i < READERS; i++) {
+                Connection r = open();
+                readers.add(new Reader(r, r.prepareStatement("SELECT longURL FROM url WHERE shortURL = ?"),
+                        r.prepareStatement("SELECT shortURL, longURL FROM url WHERE shortURL > ? ORDER BY shortURL LIMIT ?"),
+                        new HashMap<>()));
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Connect to the database file for the first time, when the engine opens.
+     * If the file does not exist, a new one will be created.
+     * If the file is corrupted, it will be removed and create a new one.
+     */
+    private Connection connect() throws SQLException {
+        try {
+            return open();
+        } catch (SQLException e) {
+            // Remove the corrupted database file and set up a new one
+            new File(path).delete();
+            return open();
+        }
+    }
+
+    /**
+     * Connect to the database file and apply the per-connection settings.
+     * Once the engine is open, a failure here is reported and the file left alone,
+     * as the other connections are still using it.
+     */
+    private Connection open() throws SQLException {
+        Connection c = DriverManager.getConnection("jdbc:sqlite:" + path);
+        initialize(c);
+        try (Statement pragma = c.createStatement()) {
+            pragma.execute("pragma synchronous = normal");
+            pragma.execute("pragma busy_timeout = 5000");
+        }
+        return c;
+    }
+
+    /**
+     * Set up a url table for a new database file
+     */
+    private void initialize(Connection c) throws SQLException {
+        try (Statement table = c.createStatement()) {
+            table.executeUpdate("CREATE TABLE IF NOT EXISTS URL " +
+                    "(shortURL TEXT PRIMARY KEY NOT NULL," +
+                    " longURL TEXT NOT NULL)");
+        }
+    }
+
+    @Override
+    public String read(String shortURL) throws IOException {
+        Reader reader = take();
+        try {
+            PreparedStatement pstmt = reader.readStmt();
+            pstmt.setString(1, shortURL);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString("longURL") : null;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            readers.offer(reader);
+        }
+    }
+
+    /**
+     * Looks up IN_CHUNK keys per query.
+     */
+    @Override
+    public String[] readAll(String[] shortURLs) throws IOException {
+        HashMap<String, String> found = new HashMap<>();
+        Reader reader = take();
+        try {
+            for (int from = 0; from < shortURLs.length; from += IN_CHUNK) {
+                int count = Math.min(IN_CHUNK, shortURLs.length - from);
+                // Pad to a power of two with the last key, so few distinct statements are prepared
+                int size = Integer.highestOneBit(count) == count ? count : Integer.highestOneBit(count) << 1;
+                PreparedStatement pstmt = multiRead(reader, size);
+                for (int i = 0; i < size; i++) {
+                    pstmt.setString(i + 1, shortURLs[from + Math.min(i, count - 1)]);
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) found.put(rs.getString("shortURL"), rs.getString("longURL"));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            readers.offer(reader);
+        }
+        String[] longURLs = new String[shortURLs.length];
+        for (int i = 0; i < shortURLs.length; i++) {
+            longURLs[i] = found.get(shortURLs[i]);
+        }
+        return longURLs;
+    }
+
+    /**
+     * Get the reader's IN (...) statement for a number of keys, preparing it on first use
+     */
+    private PreparedStatement multiRead(Reader reader, int size) throws SQLException {
+        PreparedStatement pstmt = reader.multiReadStmts().get(size);
+        if (pstmt == null) {
+            String marks = "?" + ",?".repeat(size - 1);
+            pstmt = reader.connection().prepareStatement("SELECT shortURL, longURL FROM url WHERE shortURL IN (" + marks + ")");
+            reader.multiReadStmts().put(size, pstmt);
+        }
+        return pstmt;
+    }
+
+    /**
+     * Adds the pairs to the batch of the REPLACE or the INSERT OR IGNORE statement.
+     */
+    @Override
+    public void put(String[] pairs, boolean replace) throws IOException {
+        PreparedStatement pstmt = replace ? writeStmt : copyStmt;
+        try {
+            for (int i = 0; i + 1 < pairs.length; i += 2) {
+                pstmt.setString(1, pairs[i]);
+                pstmt.setString(2, pairs[i + 1]);
+                pstmt.addBatch();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        try {
+            writeStmt.executeBatch();
+            copyStmt.executeBatch();
+            writer.commit();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void rollback() {
+        try {
+            writeStmt.clearBatch();
+            copyStmt.clearBatch();
+            writer.rollback();
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Pages through the table in short URL order; the cursor is the last short URL visited.
+     */
+    @Override
+    public String scan(String cursor, int rows, Visitor visitor) throws IOException {
+        Reader reader = take();
+        try {
+            PreparedStatement pstmt = reader.scanStmt();
+            pstmt.setString(1, cursor);
+            pstmt.setInt(2, rows);
+            int visited = 0;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    visited++;
+                    cursor = rs.getString("shortURL");
+                    visitor.visit(cursor, rs.getString("longURL"));
+                }
+            }
+            return visited < rows ? null : cursor;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            readers.offer(reader);
+        }
+    }
+
+    /**
+     * Reads the table in one transaction on a connection of its own, which under
+     * WAL sees a single snapshot without holding up the writer or the readers.
+     */
+    @Override
+    public void snapshot(Visitor visitor) throws IOException {
+        try (Connection c = open()) {
+            c.setAutoCommit(false);
+            try (Statement stmt = c.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT shortURL, longURL FROM url ORDER BY shortURL")) {
+                while (rs.next()) visitor.visit(rs.getString(1), rs.getString(2));
+            } finally {
+                c.rollback();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public String stats() {
+        return "";
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Reader reader : readers) reader.connection().close();
+            writer.close();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private Reader take() throws IOException {
+        try {
+            return readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a reader");
+        }
+    }
+}
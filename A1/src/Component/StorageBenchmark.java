@@ -0,0 +1,149 @@
+package Component;
+
+import API.LatencyTracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs the same read and write mixes against each storage engine.
+ * Like a database, it writes from one thread in commits of db.batchSize pairs
+ * while reader threads look up random stored keys. Every engine starts from an
+ * empty directory, is loaded with bench.keys pairs, runs each mix for bench.ops
+ * operations and is finally reopened to time its startup.
+ *
+ * Usage: java -cp ... Component.StorageBenchmark [sqlite] [bitcask]
+ */
+public class StorageBenchmark {
+
+    static final int KEYS = Integer.getInteger("bench.keys", 100000);        // Pairs loaded before the mixes
+    static final int OPS = Integer.getInteger("bench.ops", 200000);          // Operations in each mix
+    static final int READERS = Integer.getInteger("bench.readers", 4);      // Threads doing the reads of a mix
+    static final String DIR = System.getProperty("bench.dir", System.getProperty("java.io.tmpdir") + "/storage-bench");
+
+    // Name and share of reads of each mix
+    private static final String[] MIXES = {"read-only", "read-heavy", "balanced", "write-heavy"};
+    private static final double[] READ_SHARES = {1.0, 0.95, 0.5, 0.05};
+
+    public static void main(String[] args) throws Exception {
+        String[] engines = args.length > 0 ? args : new String[]{"sqlite", "bitcask"};
+        System.out.println("keys=" + KEYS + " ops=" + OPS + " readers=" + READERS + " batch=" + Database.BATCH_SIZE);
+        for (String name : engines) {
+            try {
+                run(name);
+            } catch (IOException | RuntimeException | LinkageError e) {
+                System.out.println(name + ": cannot run, " + e);
+            }
+        }
+    }
+
+    private static void run(String name) throws Exception {
+        File dir = new File(DIR, name);
+        delete(dir);
+        dir.mkdirs();
+        String path = name.equals("sqlite") ? new File(dir, "url.db").getPath() : dir.getPath();
+
+        StorageEngine engine = StorageEngine.open(name, path);
+        long start = System.nanoTime();
+        String[] pairs = new String[2 * Database.BATCH_SIZE];
+        for (int from = 0; from < KEYS; from += Database.BATCH_SIZE) {
+            int count = Math.min(Database.BATCH_SIZE, KEYS - from);
+            String[] batch = count == Database.BATCH_SIZE ? pairs : new String[2 * count];
+            for (int i = 0; i < count; i++) {
+                batch[2 * i] = key(from + i);
+                batch[2 * i + 1] = value(from + i, 0);
+            }
+            engine.put(batch, true);
+            engine.commit();
+        }
+        report(name, "load", KEYS, System.nanoTime() - start, null, null);
+
+        for (int m = 0; m < MIXES.length; m++) {
+            mix(engine, name, MIXES[m], READ_SHARES[m], m + 1);
+        }
+
+        String stats = engine.stats();
+        engine.close();
+        start = System.nanoTime();
+        engine = StorageEngine.open(name, path);
+        System.out.printf("%-8s %-12s %10.1f ms%n", name, "reopen", (System.nanoTime() - start) / 1e6);
+        if (!stats.isEmpty()) System.out.println(name + " " + stats);
+        engine.close();
+    }
+
+    /**
+     * Runs one mix: the reads spread over the reader threads, the writes
+     * overwriting random keys from this thread, both at once.
+     */
+    private static void mix(StorageEngine engine, String name, String mix, double readShare, int round) throws Exception {
+        int reads = (int) Math.round(OPS * readShare);
+        int writes = OPS - reads;
+        LatencyTracker readLatency = new LatencyTracker(Long.MAX_VALUE / 4);
+        LatencyTracker commitLatency = new LatencyTracker(Long.MAX_VALUE / 4);
+        long[] misses = new long[READERS];
+        ArrayList<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < READERS; t++) {
+            int id = t;
+            int share = reads / READERS + (t < reads % READERS ? 1 : 0);
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    for (int i = 0; i < share; i++) {
+                        long begin = System.nanoTime();
+                        if (engine.read(key(random.nextInt(KEYS))) == null) misses[id]++;
+                        readLatency.record((System.nanoTime() - begin) / 1000);
+                    }
+                } catch (IOException e) {
+                    System.out.println(name + ": read failed, " + e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int done = 0; done < writes; done += Database.BATCH_SIZE) {
+            int count = Math.min(Database.BATCH_SIZE, writes - done);
+            String[] batch = new String[2 * count];
+            for (int i = 0; i < count; i++) {
+                int k = random.nextInt(KEYS);
+                batch[2 * i] = key(k);
+                batch[2 * i + 1] = value(k, round);
+            }
+            long begin = System.nanoTime();
+            engine.put(batch, true);
+            engine.commit();
+            commitLatency.record((System.nanoTime() - begin) / 1000);
+        }
+        for (Thread thread : threads) thread.join();
+        long missed = 0;
+        for (long m : misses) missed += m;
+        if (missed > 0) System.out.println(name + ": " + missed + " stored keys not found");
+        report(name, mix, OPS, System.nanoTime() - start, reads > 0 ? readLatency : null, writes > 0 ? commitLatency : null);
+    }
+
+    private static void report(String name, String mix, long ops, long nanos, LatencyTracker reads, LatencyTracker commits) {
+        StringBuilder line = new StringBuilder(String.format("%-8s %-12s %10.0f ops/s", name, mix, ops / (nanos / 1e9)));
+        if (reads != null) line.append(String.format("  read p50=%dus p99=%dus", reads.percentile(50), reads.percentile(99)));
+        if (commits != null) line.append(String.format("  commit p50=%dus p99=%dus", commits.percentile(50), commits.percentile(99)));
+        System.out.println(line);
+    }
+
+    private static String key(int i) {
+        return "k" + Integer.toString(i, 36);
+    }
+
+    private static String value(int i, int round) {
+        return "http://example.com/" + Integer.toString(i * 31 + round, 36) + "/" + round;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+}
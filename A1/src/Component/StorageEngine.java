@@ -0,0 +1,100 @@
+package Component;
+
+import java.io.IOException;
+
+/**
+ * Where a database keeps its short/long URL pairs.
+ * Writes are staged with put and become visible together on commit. They come
+ * from the database's single group commit thread, while reads, scans and
+ * snapshots may run on any number of threads at once.
+ */
+public interface StorageEngine extends AutoCloseable {
+
+    /**
+     * Receives the pairs of a scan or a snapshot, one at a time.
+     */
+    interface Visitor {
+        void visit(String shortURL, String longURL) throws IOException;
+    }
+
+    /**
+     * Opens the engine named by db.engine.
+     *
+     * @param name "sqlite" or "bitcask"
+     * @param path database file for SQLite, directory of the log for Bitcask
+     * @return the open engine
+     * @throws IOException if the engine cannot be opened
+     */
+    static StorageEngine open(String name, String path) throws IOException {
+        switch (name) {
+            case "sqlite":
+                return new SqliteEngine(path);
+            case "bitcask":
+                return new BitcaskEngine(path);
+            default:
+                throw new IllegalArgumentException("Unknown storage engine " + name);
+        }
+    }
+
+    /**
+     * @param shortURL short URL
+     * @return long URL, or null if the short URL is not stored
+     */
+    String read(String shortURL) throws IOException;
+
+    /**
+     * @param shortURLs short URLs
+     * @return long URLs in the order of the short URLs, null for those not stored
+     */
+    default String[] readAll(String[] shortURLs) throws IOException {
+        String[] longURLs = new String[shortURLs.length];
+        for (int i = 0; i < shortURLs.length; i++) {
+            longURLs[i] = read(shortURLs[i]);
+        }
+        return longURLs;
+    }
+
+    /**
+     * Stages pairs for the next commit.
+     *
+     * @param pairs   short and long URLs in turn
+     * @param replace false to keep any value already stored or staged for a key
+     */
+    void put(String[] pairs, boolean replace) throws IOException;
+
+    /**
+     * Makes the staged pairs visible and stored, all or none.
+     */
+    void commit() throws IOException;
+
+    /**
+     * Drops the staged pairs.
+     */
+    void rollback();
+
+    /**
+     * Visits stored pairs in an order that stays fixed while the scan goes on,
+     * resuming where an earlier call stopped.
+     *
+     * @param cursor  "" to start, otherwise a cursor returned by the previous call
+     * @param rows    most pairs to visit
+     * @param visitor receives the pairs
+     * @return cursor to resume from, or null once every pair has been visited
+     */
+    String scan(String cursor, int rows, Visitor visitor) throws IOException;
+
+    /**
+     * Visits every pair as stored at one point in time, without holding up writes.
+     *
+     * @param visitor receives the pairs
+     */
+    void snapshot(Visitor visitor) throws IOException;
+
+    /**
+     * @return engine figures on one line, empty if there are none
+     */
+    String stats();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,161 @@
+package Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * A warm pool of persistent HTTP connections from the load balancer to each node.
+ * Idle connections are reused most recent first, closed before the node's own
+ * keep-alive timeout would close them, and topped up to a minimum per node so
+ * requests rarely wait for a TCP handshake.
+ */
+public class UpstreamPool {
+
+    static final int TIMEOUT = Integer.getInteger("lb.upstreamTimeout", 5000);           // Read timeout in milliseconds
+    static final int CONNECT_TIMEOUT = Integer.getInteger("lb.connectTimeout", 500);     // Connect timeout in milliseconds
+    static final int IDLE_TIMEOUT = Integer.getInteger("lb.upstreamIdleTimeout", 10000); // Milliseconds an idle connection is kept
+    static final int MAX_IDLE = Integer.getInteger("lb.upstreamMaxIdle", 64);            // Idle connections kept per node
+    static final int MIN_IDLE = Integer.getInteger("lb.upstreamMinIdle", 2);             // Idle connections opened ahead per node
+
+    private final ConcurrentHashMap<Address, ConcurrentLinkedDeque<Upstream>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * Returns an idle connection to a node, or opens a new one.
+     *
+     * @param node node address
+     * @return connection to the node
+     * @throws IOException if a new connection cannot be opened
+     */
+    public Upstream borrow(Address node) throws IOException {
+        ConcurrentLinkedDeque<Upstream> deque = idle.get(node);
+        if (deque != null) {
+            long now = System.currentTimeMillis();
+            Upstream upstream;
+            while ((upstream = deque.pollFirst()) != null) {
+                if (upstream.isHealthy(now)) {
+                    upstream.reused = true;
+                    return upstream;
+                }
+                upstream.close();
+            }
+        }
+        return new Upstream(node);
+    }
+
+    /**
+     * Opens a new connection to a node, for a request that cannot be sent again
+     * if a pooled connection turns out to have been closed by the node.
+     *
+     * @param node node address
+     * @return connection to the node
+     * @throws IOException if the connection cannot be opened
+     */
+    public Upstream open(Address node) throws IOException {
+        return new Upstream(node);
+    }
+
+    /**
+     * Returns a connection whose last response was read completely.
+     *
+     * @param upstream connection to keep
+     */
+    public void release(Upstream upstream) {
+        ConcurrentLinkedDeque<Upstream> deque = idle.computeIfAbsent(upstream.node, k -> new ConcurrentLinkedDeque<>());
+        if (deque.size() >= MAX_IDLE) {
+            upstream.close();
+            return;
+        }
+        upstream.lastUsed = System.currentTimeMillis();
+        deque.offerFirst(upstream);
+    }
+
+    /**
+     * Closes expired connections, drops nodes that left and opens connections
+     * to nodes with fewer than the minimum idle.
+     *
+     * @param nodes current node list
+     */
+    public void maintain(ArrayList<Address> nodes) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Address, ConcurrentLinkedDeque<Upstream>> entry : idle.entrySet()) {
+            boolean member = nodes.contains(entry.getKey());
+            for (Upstream upstream : entry.getValue()) {
+                if ((!member || !upstream.isHealthy(now)) && entry.getValue().remove(upstream)) {
+                    upstream.close();
+                }
+            }
+            if (!member) idle.remove(entry.getKey());
+        }
+        for (Address node : nodes) {
+            ConcurrentLinkedDeque<Upstream> deque = idle.computeIfAbsent(node, k -> new ConcurrentLinkedDeque<>());
+            for (int i = deque.size(); i < MIN_IDLE; i++) {
+                try {
+                    deque.offerLast(new Upstream(node));
+                } catch (IOException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of idle connections across all nodes.
+     *
+     * @return number of idle connections
+     */
+    public int idleCount() {
+        int count = 0;
+        for (ConcurrentLinkedDeque<Upstream> deque : idle.values()) {
+            count += deque.size();
+        }
+        return count;
+    }
+
+    /**
+     * A persistent connection to one node.
+     */
+    public static class Upstream {
+        final Address node;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed = System.currentTimeMillis();
+        boolean reused = false;
+
+        Upstream(Address node) throws IOException {
+            this.node = node;
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(node.host(), node.port()), CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(TIMEOUT);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        boolean isHealthy(long now) {
+            return !socket.isClosed() && !socket.isInputShutdown() && now - lastUsed < IDLE_TIMEOUT;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("LB error: " + e.getMessage());
+            }
+        }
+    }
+}
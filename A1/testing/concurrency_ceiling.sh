@@ -0,0 +1,28 @@
+#!/bin/bash
+#
+# Measures the LB -> Node -> DB chain at rising concurrency to find the point
+# where requests per second stop growing and latency starts to climb.
+#
+# Start the cluster once per execution model and run this script against the
+# load balancer each time, e.g.
+#
+#   JAVA_OPTS="-Dlink.executor=fixed -Dlb.threads=8 -Dnode.threads=8 -Ddb.threads=8" ./launch.sh
+#   JAVA_OPTS="-Dlink.executor=virtual -Dnode.dbPoolSize=256" ./launch.sh
+#
+# Virtual threads need Java 21; on older JVMs "virtual" falls back to a fixed pool.
+# Use short URLs that are not cached to measure the whole chain.
+#
+# Usage: ./concurrency_ceiling.sh [url] [requests per level]
+
+URL=${1:-http://localhost:5555/0000000}
+REQUESTS=${2:-10000}
+LEVELS="1 8 16 32 64 128 256 512 1024"
+
+printf "%-12s %-14s %-12s %s\n" "concurrency" "requests/s" "mean ms" "failed"
+for c in $LEVELS; do
+    out=$(ab -k -q -r -n $REQUESTS -c $c "$URL" 2>&1)
+    rps=$(echo "$out" | awk '/Requests per second/ {print $4}')
+    mean=$(echo "$out" | awk '/Time per request/ {print $4; exit}')
+    failed=$(echo "$out" | awk '/Failed requests/ {print $3}')
+    printf "%-12s %-14s %-12s %s\n" "$c" "$rps" "$mean" "$failed"
+done